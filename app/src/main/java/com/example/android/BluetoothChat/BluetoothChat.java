@@ -41,7 +41,10 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -64,11 +67,15 @@ public class BluetoothChat extends Activity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_DELIVERED = 6;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
 
+    // File in the app's private storage holding the buffered messages
+    private static final String MESSAGE_LOG = "messages.log";
+
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
@@ -90,14 +97,11 @@ public class BluetoothChat extends Activity {
     // Member object for the chat services
     private BluetoothChatService mChatService = null;
 
-    // List of detected beacons
-    public static HashMap<String, String> beaconMap = new HashMap<>();
-
-    // Incoming and outgoing messages list
-    public static HashMap<Integer, MessageBT> messageHashMap = new HashMap<>();
+    // The SpotNet node: detected beacons, buffered messages and peer sessions
+    public static SpotNetNode node = null;
 
     // List of all the beacons deployed out there. Not to confuse with
-    // beaconMap, which is the list of detected beacons.
+    // node.getBeacons(), which is the list of detected beacons.
     public static HashMap<String, String> allBeacons = new HashMap<String, String>() {
         {
             put("1st floor","EC:74:61:FE:EC:26");
@@ -108,11 +112,37 @@ public class BluetoothChat extends Activity {
         };
     };
 
-    // Create an array of devices I'm connecting to
-    public static ArrayList<ForwardList> forwardListArray = new ArrayList<>();
-
     private Button discoverButton;
 
+    // Starts inquiries as planned by node.getDiscoveryScheduler()
+    private final Handler mDiscoveryHandler = new Handler();
+
+    private final Runnable mDiscoveryTick = new Runnable() {
+        @Override
+        public void run() {
+            DiscoveryScheduler scheduler = node.getDiscoveryScheduler();
+            long now = System.currentTimeMillis();
+            // The radio arbiter turns the inquiry down while sessions move data, wait a bit for them
+            if (scheduler.isDue(now) && !startInquiry(scheduler.getInquiryMillis(), false)
+                    && !scheduler.defer(now)) {
+                // Put off for too long, settle for a window between transfers
+                startInquiry(scheduler.getInquiryMillis(), true);
+            }
+            // Check back at least every MIN_INTERVAL, a new message may bring the next inquiry forward
+            long delay = Math.max(1000, Math.min(DiscoveryScheduler.MIN_INTERVAL_MILLIS,
+                    scheduler.getNextInquiryAt() - now));
+            mDiscoveryHandler.postDelayed(this, delay);
+        }
+    };
+
+    // Ends a short inquiry or window, ACTION_DISCOVERY_FINISHED follows
+    private final Runnable mCancelDiscovery = new Runnable() {
+        @Override
+        public void run() {
+            node.getRadioArbiter().cancelInquiry(System.currentTimeMillis());
+        }
+    };
+
     public int randomInteger(int min, int max) {
 
         Random rand = new Random();
@@ -155,19 +185,40 @@ public class BluetoothChat extends Activity {
             return;
         }
 
+        if (node == null) {
+            node = new SpotNetNode(new RfcommTransport(mBluetoothAdapter, false));
+            // Inquiries only start and stop through the node's radio arbiter
+            final BluetoothAdapter adapter = mBluetoothAdapter;
+            node.getRadioArbiter().setRadio(new RadioArbiter.Radio() {
+                @Override
+                public void startDiscovery() {
+                    // If we're already discovering, stop it
+                    if (adapter.isDiscovering()) {
+                        adapter.cancelDiscovery();
+                    }
+                    adapter.startDiscovery();
+                }
+
+                @Override
+                public void cancelDiscovery() {
+                    adapter.cancelDiscovery();
+                }
+            });
+            // Bring back the messages buffered before the process was killed
+            try {
+                MessageLog log = new MessageLog(new File(getFilesDir(), MESSAGE_LOG));
+                int records = log.replay(node.getStore(), node.getDelivered());
+                if(D) Log.d(TAG, "Replayed " + records + " log records");
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open message log, messages are kept in memory only", e);
+            }
+        }
 
 
 
-        // Snippet to run the discovery process every 20 seconds
-        // considering it only takes 12 sec to finish the discovery
-        final Handler deviceDiscoveryHandler = new Handler();
-        deviceDiscoveryHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                toggleDiscovery();
-                deviceDiscoveryHandler.postDelayed(this, 20000);
-            }
-        });
+
+        // Run the discovery process when the node's scheduler says so
+        mDiscoveryHandler.post(mDiscoveryTick);
 
 //        final Handler deviceConnectionHandler = new Handler();
 //        deviceConnectionHandler.post(new Runnable() {
@@ -186,8 +237,15 @@ public class BluetoothChat extends Activity {
             @Override
             public void onClick(View view) {
                 mConversationArrayAdapter.clear();
-                Iterator it = beaconMap.entrySet().iterator();
+                Iterator it = node.getBeacons().entrySet().iterator();
                 mConversationArrayAdapter.add("My MAC address is " + mBluetoothAdapter.getAddress());
+                RadioArbiter radio = node.getRadioArbiter();
+                long now = System.currentTimeMillis();
+                mConversationArrayAdapter.add("Radio: inquiry "
+                        + radio.getModeMillis(RadioArbiter.MODE_INQUIRY, now) / 1000 + " s, transfer "
+                        + radio.getModeMillis(RadioArbiter.MODE_TRANSFER, now) / 1000 + " s, both "
+                        + radio.getModeMillis(RadioArbiter.MODE_SHARED, now) / 1000 + " s, idle "
+                        + radio.getModeMillis(RadioArbiter.MODE_IDLE, now) / 1000 + " s");
                 while (it.hasNext()) {
                     Map.Entry beacon = (Map.Entry) it.next();
                     Log.d(TAG, "THE LIST CONTAINS: " + beacon.getKey() + " - " + beacon.getValue());
@@ -235,12 +293,29 @@ public class BluetoothChat extends Activity {
 //            discoverButton.setText("Stop Discovery");
 //            mBluetoothAdapter.startDiscovery();
 //        }
-        // If we're already discovering, stop it
-        if (mBluetoothAdapter.isDiscovering()) {
-            mBluetoothAdapter.cancelDiscovery();
+        // Asked for by hand, so at least a window even during transfers
+        startInquiry(DiscoveryScheduler.FULL_INQUIRY_MILLIS, true);
+    }
+
+    /**
+     * Ask the node's radio arbiter for an inquiry, started if granted.
+     * @param millis  How long the inquiry should last
+     * @param overdue  True to settle for a short window while sessions move data
+     * @return true if the inquiry started
+     */
+    private boolean startInquiry(long millis, boolean overdue) {
+        long now = System.currentTimeMillis();
+        long granted = node.getRadioArbiter().requestInquiry(now, millis, overdue);
+        if (granted == 0) {
+            return false;
         }
-        // Request discover from BluetoothAdapter
-        mBluetoothAdapter.startDiscovery();
+        node.getDiscoveryScheduler().inquiryStarted(now);
+        // A window still pending from an earlier inquiry must not cut this one short
+        mDiscoveryHandler.removeCallbacks(mCancelDiscovery);
+        if (granted < DiscoveryScheduler.FULL_INQUIRY_MILLIS) {
+            mDiscoveryHandler.postDelayed(mCancelDiscovery, granted);
+        }
+        return true;
     }
 
 
@@ -260,7 +335,9 @@ public class BluetoothChat extends Activity {
                 // If it's already paired, skip it, because it's been listed already
 //                if ((device.getBondState() != BluetoothDevice.BOND_BONDED) && (device.getName().equals("iBKS105"))) {
                 if ((device.getName() != null) && (device.getName().equals("iBKS105"))) {
-                    beaconMap.put(device.getAddress(), device.getName());
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    node.addBeacon(device.getAddress(), device.getName(), rssi);
+                    node.getDiscoveryScheduler().beaconFound(device.getAddress());
                 }
 
                 // If the discovered device is BTChat client, add its MAC address to the list of discovered clients
@@ -273,6 +350,7 @@ public class BluetoothChat extends Activity {
 //                        deviceIntent.putExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS, device.getAddress());
 //                        connectDevice(deviceIntent, false);
 //                    }
+                    node.getDiscoveryScheduler().peerFound(device.getAddress());
                     if (!btChatClientsList.contains(device.getAddress())) {
                         btChatClientsList.add(device.getAddress());
                     }
@@ -284,6 +362,9 @@ public class BluetoothChat extends Activity {
             else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 Log.d(TAG, " ------------- DISCOVERY HAS FINISHED --------------------");
                 Toast.makeText(context, "Discovery finished", Toast.LENGTH_SHORT).show();
+                long now = System.currentTimeMillis();
+                node.getRadioArbiter().inquiryFinished(now);
+                node.getDiscoveryScheduler().inquiryFinished(now, node.getStore().sprayable().size());
                 processBTChatlist();
             }
 
@@ -304,14 +385,10 @@ public class BluetoothChat extends Activity {
         int listSize = btChatClientsList.size();
         // Check if other clients were detected
         // If yes, check if we have messages to forward
-        if ((!btChatClientsList.isEmpty()) && (!messageHashMap.isEmpty())){
-            // Check if we have messages with SprayCount = 0
-            for (Integer key : messageHashMap.keySet()) {
-                if (messageHashMap.get(key).getSprayCount() == 0) {
-                    messageReady = true;
-                    break; // at least one is enough
-                }
-            }
+        if ((!btChatClientsList.isEmpty()) && (!node.getStore().isEmpty())){
+            // Check if we have copies to spray or messages for one of them
+            messageReady = node.getStore().hasSprayable()
+                    || node.getStore().hasMessagesFor(btChatClientsList);
 
             if (messageReady) {
                 // If all good initiate connection to a device(-s)
@@ -392,7 +469,7 @@ public class BluetoothChat extends Activity {
         });
 
         // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(this, mHandler);
+        mChatService = new BluetoothChatService(node, mHandler);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -415,6 +492,8 @@ public class BluetoothChat extends Activity {
         super.onDestroy();
 
         // Make sure we're not doing discovery anymore
+        mDiscoveryHandler.removeCallbacks(mDiscoveryTick);
+        mDiscoveryHandler.removeCallbacks(mCancelDiscovery);
         if (mBluetoothAdapter != null) {
             mBluetoothAdapter.cancelDiscovery();
         }
@@ -455,7 +534,11 @@ public class BluetoothChat extends Activity {
         if (message.length() > 0) {
             // Get the message_beacon bytes and tell the BluetoothChatService to write
             byte[] send = message.getBytes();
-            mChatService.write(send);
+            if (!mChatService.write(send)) {
+                // Keep the text so the user can send it again
+                Toast.makeText(this, "Link busy, try again", Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -530,6 +613,11 @@ public class BluetoothChat extends Activity {
                 Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),
                                Toast.LENGTH_SHORT).show();
                 break;
+            case MESSAGE_DELIVERED:
+                // a message addressed to this device arrived
+                MessageBT delivered = (MessageBT) msg.obj;
+                mConversationArrayAdapter.add("For me:  " + delivered.getText());
+                break;
             }
         }
     };
@@ -602,11 +690,14 @@ public class BluetoothChat extends Activity {
 //                mConversationArrayAdapter.add("Here is a MessageHashMap I have\n" + msg.getValue());
 //            }
 
-                for (Integer name: messageHashMap.keySet()) {
-                    String key = name.toString();
-                    String value = messageHashMap.get(name).toString();
+                for (MessageBT message : node.getStore().messages()) {
+                    String key = message.getId().toString();
+                    String value = message.toString();
                     mConversationArrayAdapter.add("Here is a MessageHashMap I have\n" + "Key: " + key +
-                            "\n" + "Spray count: " + messageHashMap.get(name).getSprayCount() +
+                            "\n" + "Spray count: " + message.getSprayCount() +
+                            "\n" + "Copies: " + message.getCopies() +
+                            "\n" + "Expires: " + new Date(message.getExpiresAt()) +
+                            "\n" + "Handed to: " + node.getForwardLog().carriers(message.getId()) +
                             "\n" + "Value: " + value);
                 }
                 return true;
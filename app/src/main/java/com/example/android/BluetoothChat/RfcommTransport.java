@@ -0,0 +1,128 @@
+package com.example.android.BluetoothChat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over Bluetooth RFCOMM, the one used on phones.
+ */
+public class RfcommTransport implements Transport {
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE =
+        UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    private static final UUID MY_UUID_INSECURE =
+        UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter mAdapter;
+    private final boolean mSecure;
+
+    /**
+     * @param adapter  The local Bluetooth adapter
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    public RfcommTransport(BluetoothAdapter adapter, boolean secure) {
+        mAdapter = adapter;
+        mSecure = secure;
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return mAdapter.getAddress();
+    }
+
+    @Override
+    public LinkListener listen() throws IOException {
+        final BluetoothServerSocket serverSocket;
+        if (mSecure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new LinkListener() {
+            @Override
+            public Link accept() throws IOException {
+                return new RfcommLink(serverSocket.accept(), true);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Link createLink(String address) throws IOException {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (mSecure) {
+            socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+        return new RfcommLink(socket, false);
+    }
+
+    private class RfcommLink implements Link, Peer {
+        private final BluetoothSocket mmSocket;
+        private final boolean mmConnected;
+
+        RfcommLink(BluetoothSocket socket, boolean connected) {
+            mmSocket = socket;
+            mmConnected = connected;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmConnected) {
+                return;
+            }
+            // A running inquiry was already cancelled by the node's RadioArbiter
+            mmSocket.connect();
+        }
+
+        @Override
+        public Peer getPeer() {
+            return this;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmSocket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getName() {
+            return mmSocket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
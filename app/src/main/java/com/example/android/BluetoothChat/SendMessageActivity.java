@@ -84,8 +84,7 @@ public class SendMessageActivity extends Activity {
                 }
                 Log.d(TAG,"Recorded values: " + "DestID: " + destinationID + " Msg: " + message + " BeaconID: " + beaconValue);
 
-                MessageBT msg = new MessageBT(message, destinationID, beaconValue);
-                BluetoothChat.messageHashMap.put(msg.getId(),msg);
+                BluetoothChat.node.originate(message, destinationID, beaconValue);
 
 
             }
@@ -0,0 +1,77 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The SpotNet rule: binary Spray-and-Wait where a message only sprays to
+ * a peer that is closer to the message's beacon than we are, as judged by
+ * the {@link LocationRouter}. Peers that send no mobility profile get the
+ * messages of every beacon they listed.
+ */
+public class BeaconMatchRouting implements RoutingStrategy {
+
+    public static final String NAME = "beacon-match";
+
+    private final LocationRouter mRouter;
+
+    /**
+     * @param router  Location-aware decision of this node
+     */
+    public BeaconMatchRouting(LocationRouter router) {
+        mRouter = router;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void contactUp(Contact contact) {
+    }
+
+    @Override
+    public byte[] encodeState(Contact contact) {
+        return null;
+    }
+
+    @Override
+    public void peerState(Contact contact, byte[] payload) {
+    }
+
+    @Override
+    public ArrayList<MessageBT> select(Contact contact) {
+        ArrayList<MessageBT> selected = new ArrayList<>();
+        HashSet<MessageId> chosen = new HashSet<>();
+        contact.selectDirect(selected, chosen);
+        ArrayList<String> closer = mRouter.closerBeacons(contact.getPeerProfile(),
+                contact.getPeerBeacons(), System.currentTimeMillis());
+        SprayAndWaitRouting.spray(contact, contact.getStore().sprayableForBeacons(closer),
+                selected, chosen);
+        return selected;
+    }
+
+    @Override
+    public void transferred(Contact contact, List<MessageBT> sent) {
+    }
+
+    @Override
+    public void contactDown(Contact contact) {
+    }
+
+    /**
+     * @return how close this node is to the message's beacon
+     */
+    @Override
+    public double utility(MessageBT message, long time) {
+        return mRouter.getProfile().closeness(message.getBeaconId(), time);
+    }
+
+    @Override
+    public long getStateBytes() {
+        // The mobility profile belongs to the node, not to the strategy
+        return 0;
+    }
+}
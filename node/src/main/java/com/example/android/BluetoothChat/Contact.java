@@ -0,0 +1,187 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One encounter with a peer as seen by a {@link RoutingStrategy}: who
+ * the two ends are, what the peer told us during the handshake and the
+ * message store to pick from. The node fills it in as frames arrive.
+ */
+public class Contact {
+
+    private final String mLocalAddress;
+    private final String mPeerAddress;
+    private final MessageStore mStore;
+    private final long mStartedAt;
+
+    private volatile StoreDigest mPeerDigest = StoreDigest.empty();
+    private volatile Map<String, Double> mPeerProfile;
+    private volatile List<String> mPeerBeacons = Collections.emptyList();
+
+    // Whatever the strategy wants to keep until the contact is over
+    private volatile Object mStrategyState;
+
+    // Hand-offs of this node, or null
+    private volatile ForwardLog mForwardLog;
+
+    // Copies taken from spray budgets for this peer, by message
+    private final HashMap<MessageId, Integer> mClaims = new HashMap<>();
+
+    /**
+     * @param localAddress  Address of this node
+     * @param peerAddress  Address of the peer
+     * @param store  Messages carried by this node
+     * @param startedAt  Start of the contact, in milliseconds since the epoch
+     */
+    public Contact(String localAddress, String peerAddress, MessageStore store, long startedAt) {
+        mLocalAddress = localAddress;
+        mPeerAddress = peerAddress;
+        mStore = store;
+        mStartedAt = startedAt;
+    }
+
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    public String getPeerAddress() {
+        return mPeerAddress;
+    }
+
+    public MessageStore getStore() {
+        return mStore;
+    }
+
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    /**
+     * @return true if the peer may already hold a message, from its digest,
+     *         or if this node handed it a copy before
+     */
+    public boolean peerMightHave(MessageId id) {
+        return mPeerDigest.mightContain(id) || forwardedBefore(id);
+    }
+
+    /**
+     * @return true if the forwarding log says the peer got a copy of a
+     *         message from this node before. The peer may have dropped it
+     *         since, but sending it again would only repeat that hop.
+     */
+    public boolean forwardedBefore(MessageId id) {
+        ForwardLog log = mForwardLog;
+        return log != null && log.forwarded(id, mPeerAddress);
+    }
+
+    void setForwardLog(ForwardLog log) {
+        mForwardLog = log;
+    }
+
+    void setPeerDigest(StoreDigest digest) {
+        mPeerDigest = digest;
+    }
+
+    /**
+     * @return closeness of the peer per beacon, or null if it sent no profile
+     */
+    public Map<String, Double> getPeerProfile() {
+        return mPeerProfile;
+    }
+
+    void setPeerProfile(Map<String, Double> profile) {
+        mPeerProfile = profile;
+    }
+
+    /**
+     * @return the beacons the peer listed in its handshake
+     */
+    public List<String> getPeerBeacons() {
+        return mPeerBeacons;
+    }
+
+    void setPeerBeacons(List<String> beacons) {
+        mPeerBeacons = beacons;
+    }
+
+    public Object getStrategyState() {
+        return mStrategyState;
+    }
+
+    public void setStrategyState(Object state) {
+        mStrategyState = state;
+    }
+
+    /**
+     * Take half of the copies of a message for the peer, see
+     * {@link MessageStore#splitCopies(MessageId)}. Copies that do not
+     * reach the peer go back to the store when the contact ends.
+     * @return the copies taken, 0 if there were none to give
+     */
+    public int claimCopies(MessageId id) {
+        int copies = mStore.splitCopies(id);
+        if (copies > 0) {
+            synchronized (mClaims) {
+                Integer previous = mClaims.get(id);
+                mClaims.put(id, previous == null ? copies : previous + copies);
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Return to the store the claimed copies of every message the peer
+     * did not acknowledge.
+     * @param delivered  IDs of the messages the peer acknowledged
+     * @return the number of messages whose copies went back
+     */
+    int releaseClaims(Set<MessageId> delivered) {
+        int released = 0;
+        synchronized (mClaims) {
+            for (Map.Entry<MessageId, Integer> claim : mClaims.entrySet()) {
+                if (!delivered.contains(claim.getKey())
+                        && mStore.returnCopies(claim.getKey(), claim.getValue())) {
+                    released++;
+                }
+            }
+            mClaims.clear();
+        }
+        return released;
+    }
+
+    /**
+     * Add one copy of every message addressed to the peer that it does
+     * not already hold. Final delivery does not use up spray copies.
+     * @param selected  Copies chosen so far
+     * @param chosen  IDs of the copies chosen so far
+     */
+    public void selectDirect(ArrayList<MessageBT> selected, Set<MessageId> chosen) {
+        for (MessageBT msg : mStore.forDestination(mPeerAddress)) {
+            if (!peerMightHave(msg.getId()) && chosen.add(msg.getId())) {
+                selected.add(handOff(msg, 1));
+            }
+        }
+    }
+
+    /**
+     * A copy for strategies that do not claim copies: it hands over no
+     * spray budget, so the peer stores it without one and, if it holds
+     * the message already, keeps the copies it had.
+     */
+    public static MessageBT replica(MessageBT msg) {
+        return handOff(msg, 0);
+    }
+
+    /**
+     * @return the copy of a message to send, carrying the given copies
+     */
+    public static MessageBT handOff(MessageBT msg, int copies) {
+        return new MessageBT(msg.getId(), msg.getText(), msg.getDestination(),
+                msg.getBeaconId(), 0, copies, msg.getCreatedAt(), msg.getTtl());
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * How many bytes are likely to get through in a contact, from what past
+ * contacts showed: the throughput of the link and how long a contact
+ * lasts. Both are exponentially weighted moving averages, so the budget
+ * follows the radio and the way its owner moves.
+ */
+public class ContactBudget {
+
+    // Until measured: a slow RFCOMM link and a short walk past each other
+    public static final double DEFAULT_BYTES_PER_SECOND = 32 * 1024;
+    public static final long DEFAULT_CONTACT_MILLIS = 10 * 1000;
+
+    // Always worth trying, even in a contact that should be over already
+    public static final long MIN_BUDGET_BYTES = 4 * 1024;
+
+    // Weight of a new sample in the moving averages
+    private static final double ALPHA = 0.2;
+
+    // Transfers too short to say anything about the link
+    private static final long MIN_SAMPLE_BYTES = 1024;
+
+    private double mBytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private double mContactMillis = DEFAULT_CONTACT_MILLIS;
+
+    /**
+     * Record a transfer, from the first byte written to its last acknowledgement.
+     */
+    public synchronized void recordTransfer(long bytes, long nanos) {
+        if (bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / nanos;
+        mBytesPerSecond += ALPHA * (sample - mBytesPerSecond);
+    }
+
+    /**
+     * Record how long a contact lasted, from link up to the end of its
+     * first round, or to link down if that came first. A session may stay
+     * open for hours between rounds, which says nothing about how long
+     * two devices stay in range, and {@link #budget(long)} is spent per
+     * round.
+     */
+    public synchronized void recordContact(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        mContactMillis += ALPHA * (millis - mContactMillis);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public synchronized double getContactMillis() {
+        return mContactMillis;
+    }
+
+    /**
+     * @param elapsedMillis  Time the current round has already lasted
+     * @return the bytes likely to get through in the rest of the contact
+     */
+    public synchronized long budget(long elapsedMillis) {
+        double remaining = Math.max(0, mContactMillis - elapsedMillis);
+        return Math.max(MIN_BUDGET_BYTES, (long) (mBytesPerSecond * remaining / 1000));
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Anti-packets: the IDs of messages known to have reached their
+ * destination, with the time each message would have expired anyway.
+ *
+ * Nodes trade the most recent entries during the handshake and drop the
+ * copies they still carry, so a delivered message stops taking buffer
+ * space and link time everywhere the news travels. An entry is kept
+ * until its message's expiry, after which no copy can be left to purge,
+ * and at most {@link #DEFAULT_CAPACITY} entries are kept, the oldest
+ * news going first.
+ */
+public class DeliveredSet {
+
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    private final int mCapacity;
+    // id -> expiry of the message, in the order the delivery was learned
+    private final LinkedHashMap<MessageId, Long> mEntries = new LinkedHashMap<>();
+    private final TimerWheel<MessageId> mExpiry = new TimerWheel<>(
+            MessageStore.EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+    // Deliveries learned so far, including those dropped since
+    private long mAdded;
+    private volatile MessageLog mLog;
+
+    public DeliveredSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity  Most entries kept
+     */
+    public DeliveredSet(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Record that a message was delivered.
+     * @param expiresAt  When the message expires, milliseconds since the epoch
+     * @return true if the delivery was not known yet
+     */
+    public synchronized boolean add(MessageId id, long expiresAt) {
+        if (mEntries.containsKey(id)) {
+            return false;
+        }
+        if (mEntries.size() >= mCapacity) {
+            Iterator<MessageId> oldest = mEntries.keySet().iterator();
+            mExpiry.cancel(oldest.next());
+            oldest.remove();
+        }
+        mEntries.put(id, expiresAt);
+        mExpiry.schedule(id, expiresAt);
+        mAdded++;
+        MessageLog log = mLog;
+        if (log != null) {
+            log.appendDelivered(id, expiresAt);
+        }
+        return true;
+    }
+
+    void setLog(MessageLog log) {
+        mLog = log;
+    }
+
+    public synchronized boolean contains(MessageId id) {
+        return mEntries.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the number of deliveries learned so far, a position for
+     *         {@link #encodeSince(long, int)}
+     */
+    public synchronized long getAddedCount() {
+        return mAdded;
+    }
+
+    /**
+     * Forget the deliveries of messages that have expired.
+     * @return the number of entries dropped
+     */
+    public synchronized int expire(long now) {
+        ArrayList<MessageId> due = new ArrayList<>();
+        mExpiry.advance(now, due);
+        for (MessageId id : due) {
+            mEntries.remove(id);
+        }
+        return due.size();
+    }
+
+    /**
+     * Encode the most recently learned deliveries for a DELIVERED frame:
+     * a varint count, then per entry the id and the expiry in seconds.
+     * @param maxEntries  Only this many entries, newest first
+     */
+    public byte[] encode(int maxEntries) {
+        return encodeSince(0, maxEntries);
+    }
+
+    /**
+     * Like {@link #encode(int)}, for only the deliveries learned after the
+     * given position, e.g. those a peer has not heard about from us.
+     * @param added  A value of {@link #getAddedCount()}
+     */
+    public byte[] encodeSince(long added, int maxEntries) {
+        ArrayList<Map.Entry<MessageId, Long>> entries;
+        long since;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.entrySet());
+            since = mAdded - added;
+        }
+        int count = (int) Math.min(Math.min(maxEntries, since), entries.size());
+        WireWriter out = new WireWriter(4 + count * 22);
+        out.writeVarInt(count);
+        for (int i = entries.size() - 1; i >= entries.size() - count; i--) {
+            MessageCodec.writeId(out, entries.get(i).getKey());
+            out.writeVarLong(entries.get(i).getValue() / 1000);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the payload of a DELIVERED frame.
+     * @return message id -> expiry in milliseconds since the epoch
+     */
+    public static LinkedHashMap<MessageId, Long> decode(byte[] payload) throws IOException {
+        return decode(new WireReader(payload));
+    }
+
+    static LinkedHashMap<MessageId, Long> decode(WireReader in) throws IOException {
+        int count = in.readVarInt();
+        if (count > in.remaining() / 17) {
+            throw new IOException("Delivered count " + count + " exceeds payload");
+        }
+        LinkedHashMap<MessageId, Long> entries = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            MessageId id = MessageCodec.readId(in);
+            entries.put(id, in.readVarLong() * 1000);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.BluetoothChat;
+
+import java.util.HashSet;
+
+/**
+ * When to run the next Bluetooth inquiry and for how long, from what
+ * the last ones found, what the store has to give and whether sessions
+ * are running.
+ *
+ * An inquiry that found a beacon or node the previous one did not find
+ * halves the interval, down to {@link #MIN_INTERVAL_MILLIS}; one that
+ * found nobody new doubles it, up to {@link #PENDING_MAX_INTERVAL_MILLIS}
+ * while there are copies to spray and {@link #MAX_INTERVAL_MILLIS}
+ * otherwise. Quiet periods also get the
+ * shorter inquiry. An inquiry due while sessions run is put off, since
+ * it slows their links down, but not for longer than
+ * {@link #MAX_DEFER_MILLIS}.
+ *
+ * Nothing here reads the clock, every call is given the time, so the
+ * policy can be driven by a simulated clock.
+ */
+public class DiscoveryScheduler {
+
+    public static final long MIN_INTERVAL_MILLIS = 10 * 1000;
+    // The fixed period used before
+    public static final long DEFAULT_INTERVAL_MILLIS = 20 * 1000;
+    public static final long PENDING_MAX_INTERVAL_MILLIS = 30 * 1000;
+    // Below the encounter gap, with room for the inquiry, so a beacon that
+    // stays in range is one encounter and does not make the interval halve
+    public static final long MAX_INTERVAL_MILLIS =
+            EncounterHistory.DEFAULT_ENCOUNTER_GAP_MILLIS - 60 * 1000;
+
+    // A full inquiry as Android runs it, and the short one for quiet periods
+    public static final long FULL_INQUIRY_MILLIS = 12 * 1000;
+    public static final long SHORT_INQUIRY_MILLIS = 5 * 1000;
+
+    // How often an inquiry put off for sessions is reconsidered, and at most for how long
+    public static final long DEFER_MILLIS = 5 * 1000;
+    public static final long MAX_DEFER_MILLIS = 60 * 1000;
+
+    private long mInterval = DEFAULT_INTERVAL_MILLIS;
+    private long mInquiryMillis = FULL_INQUIRY_MILLIS;
+    private long mNextAt;
+    // When the inquiry due at mNextAt was first put off, 0 if it was not
+    private long mDeferredSince;
+
+    private boolean mRunning;
+    private int mFound;
+    // Beacons and peers found by the last inquiry and by the one running
+    private HashSet<String> mLastDevices = new HashSet<>();
+    private HashSet<String> mDevices = new HashSet<>();
+
+    /**
+     * @param now  The first inquiry is due right away
+     */
+    public DiscoveryScheduler(long now) {
+        mNextAt = now;
+    }
+
+    /**
+     * @return true if an inquiry should start now
+     */
+    public synchronized boolean isDue(long now) {
+        return !mRunning && now >= mNextAt;
+    }
+
+    /**
+     * @return when the next inquiry is due, in milliseconds since the epoch
+     */
+    public synchronized long getNextInquiryAt() {
+        return mNextAt;
+    }
+
+    /**
+     * @return how long the next or running inquiry should last
+     */
+    public synchronized long getInquiryMillis() {
+        return mInquiryMillis;
+    }
+
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * The inquiry is due but sessions are running: put it off, unless it
+     * has been put off for too long already.
+     * @return true if the inquiry should wait, see {@link #getNextInquiryAt()}
+     */
+    public synchronized boolean defer(long now) {
+        if (mDeferredSince == 0) {
+            mDeferredSince = now;
+        } else if (now - mDeferredSince >= MAX_DEFER_MILLIS) {
+            return false;
+        }
+        mNextAt = now + DEFER_MILLIS;
+        return true;
+    }
+
+    public synchronized void inquiryStarted(long now) {
+        mRunning = true;
+        mDeferredSince = 0;
+        mFound = 0;
+        mDevices = new HashSet<>();
+    }
+
+    /**
+     * The inquiry found a beacon. It counts as new if the previous inquiry
+     * did not find it.
+     */
+    public synchronized void beaconFound(String address) {
+        deviceFound(address);
+    }
+
+    /**
+     * The inquiry found another node. It counts as new if the previous
+     * inquiry did not find it.
+     */
+    public synchronized void peerFound(String address) {
+        deviceFound(address);
+    }
+
+    private void deviceFound(String address) {
+        if (mDevices.add(address) && !mLastDevices.contains(address)) {
+            mFound++;
+        }
+    }
+
+    /**
+     * The inquiry is over: plan the next one.
+     * @param sprayable  Messages with copies left to spray
+     * @return when the next inquiry is due
+     */
+    public synchronized long inquiryFinished(long now, int sprayable) {
+        mRunning = false;
+        if (mFound > 0) {
+            mInterval = Math.max(MIN_INTERVAL_MILLIS, mInterval / 2);
+        } else {
+            long max = sprayable > 0 ? PENDING_MAX_INTERVAL_MILLIS : MAX_INTERVAL_MILLIS;
+            mInterval = Math.min(max, mInterval * 2);
+        }
+        mInquiryMillis = mFound > 0 || sprayable > 0 ? FULL_INQUIRY_MILLIS : SHORT_INQUIRY_MILLIS;
+        mLastDevices = mDevices;
+        mNextAt = now + mInterval;
+        return mNextAt;
+    }
+
+    /**
+     * There is something new to forward, e.g. a message was written:
+     * look for peers again soon.
+     */
+    public synchronized void wake(long now) {
+        mInterval = Math.min(mInterval, DEFAULT_INTERVAL_MILLIS);
+        mInquiryMillis = FULL_INQUIRY_MILLIS;
+        if (!mRunning) {
+            mNextAt = Math.min(mNextAt, now + MIN_INTERVAL_MILLIS);
+        }
+    }
+}
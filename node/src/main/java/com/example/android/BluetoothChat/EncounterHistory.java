@@ -0,0 +1,284 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * What a node knows about the beacons it has seen: when, how often and
+ * for how long, in a fixed amount of memory.
+ *
+ * Discovery reports a beacon every time a scan finds it. Sightings less
+ * than {@link #DEFAULT_ENCOUNTER_GAP_MILLIS} apart belong to the same
+ * encounter, the time between them is dwell time. Every beacon keeps a
+ * ring of {@link #BUCKETS} hourly buckets, a week, with the number of
+ * encounters and the seconds of dwell in each hour, plus a score that
+ * decays with {@link #HALF_LIFE_MILLIS}: one point per encounter and one
+ * per hour spent near the beacon. A beacon seen once weeks ago fades out,
+ * one passed every day stays on top.
+ *
+ * At most {@link #DEFAULT_MAX_BEACONS} beacons are kept, a new one pushes
+ * out the beacon with the lowest score.
+ */
+public class EncounterHistory {
+
+    public static final long BUCKET_MILLIS = 60 * 60 * 1000;
+    public static final int BUCKETS = 7 * 24;
+    public static final long HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_BEACONS = 256;
+    public static final long DEFAULT_ENCOUNTER_GAP_MILLIS = 5 * 60 * 1000;
+
+    // Signal strength of a sighting reported without one
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    private static final double DECAY_PER_MILLI = Math.log(2) / HALF_LIFE_MILLIS;
+
+    private static class Record {
+        final String address;
+        String name;
+        // Per hour, indexed by the absolute hour modulo BUCKETS
+        final char[] encounters = new char[BUCKETS];
+        final char[] dwellSeconds = new char[BUCKETS];
+        long newestBucket;
+        long lastSeen;
+        int rssi = NO_RSSI;
+        double score;
+        long scoredAt;
+
+        Record(String address, long time) {
+            this.address = address;
+            newestBucket = time / BUCKET_MILLIS;
+            lastSeen = time;
+            scoredAt = time;
+        }
+
+        // Clear the buckets of the hours that went by since the newest one
+        void advanceTo(long bucket) {
+            long elapsed = bucket - newestBucket;
+            if (elapsed <= 0) {
+                return;
+            }
+            for (long b = newestBucket + 1, n = 0; n < Math.min(elapsed, BUCKETS); b++, n++) {
+                int slot = (int) (b % BUCKETS);
+                encounters[slot] = 0;
+                dwellSeconds[slot] = 0;
+            }
+            newestBucket = bucket;
+        }
+
+        double scoreAt(long time) {
+            return time > scoredAt ? score * Math.exp(-DECAY_PER_MILLI * (time - scoredAt)) : score;
+        }
+
+        void addScore(double points, long time) {
+            score = scoreAt(time) + points;
+            scoredAt = Math.max(scoredAt, time);
+        }
+
+        // Sum of one of the bucket arrays over the hours that overlap [since, now]
+        long sum(char[] buckets, long since, long now) {
+            long first = Math.max(since / BUCKET_MILLIS, newestBucket - BUCKETS + 1);
+            long last = Math.min(now / BUCKET_MILLIS, newestBucket);
+            long total = 0;
+            for (long b = first; b <= last; b++) {
+                total += buckets[(int) (b % BUCKETS)];
+            }
+            return total;
+        }
+    }
+
+    private final HashMap<String, Record> mRecords = new HashMap<>();
+    private final int mMaxBeacons;
+    private final long mEncounterGap;
+
+    public EncounterHistory() {
+        this(DEFAULT_MAX_BEACONS, DEFAULT_ENCOUNTER_GAP_MILLIS);
+    }
+
+    /**
+     * @param maxBeacons  Number of beacons remembered
+     * @param encounterGap  Longest time between two sightings of the same encounter
+     */
+    public EncounterHistory(int maxBeacons, long encounterGap) {
+        mMaxBeacons = maxBeacons;
+        mEncounterGap = encounterGap;
+    }
+
+    /**
+     * Record that discovery found a beacon.
+     * @param address  Address of the beacon
+     * @param name  Advertised name of the beacon
+     * @param rssi  Signal strength in dBm, or {@link #NO_RSSI}
+     * @param time  When, in milliseconds since the epoch
+     * @return true if this sighting starts a new encounter with the beacon
+     */
+    public synchronized boolean recordSighting(String address, String name, int rssi, long time) {
+        Record record = mRecords.get(address);
+        boolean encounter;
+        if (record == null) {
+            if (mRecords.size() >= mMaxBeacons) {
+                evictWeakest(time);
+            }
+            record = new Record(address, time);
+            mRecords.put(address, record);
+            encounter = true;
+        } else {
+            long gap = time - record.lastSeen;
+            encounter = gap < 0 || gap > mEncounterGap;
+            record.advanceTo(time / BUCKET_MILLIS);
+            if (!encounter && gap > 0) {
+                // The whole gap goes to the hour of this sighting
+                int slot = (int) ((time / BUCKET_MILLIS) % BUCKETS);
+                record.dwellSeconds[slot] = (char) Math.min(Character.MAX_VALUE,
+                        record.dwellSeconds[slot] + gap / 1000);
+                record.addScore((double) gap / BUCKET_MILLIS, time);
+            }
+        }
+        if (encounter) {
+            int slot = (int) ((time / BUCKET_MILLIS) % BUCKETS);
+            if (time / BUCKET_MILLIS > record.newestBucket - BUCKETS) {
+                record.encounters[slot] = (char) Math.min(Character.MAX_VALUE,
+                        record.encounters[slot] + 1);
+            }
+            record.addScore(1, time);
+        }
+        record.name = name;
+        if (rssi != NO_RSSI) {
+            record.rssi = rssi;
+        }
+        record.lastSeen = Math.max(record.lastSeen, time);
+        return encounter;
+    }
+
+    private void evictWeakest(long time) {
+        Record weakest = null;
+        double weakestScore = Double.MAX_VALUE;
+        for (Record record : mRecords.values()) {
+            double score = record.scoreAt(time);
+            if (score < weakestScore) {
+                weakest = record;
+                weakestScore = score;
+            }
+        }
+        if (weakest != null) {
+            mRecords.remove(weakest.address);
+        }
+    }
+
+    /**
+     * Beacons seen at or after a time.
+     * @param since  Milliseconds since the epoch, e.g. now minus N hours
+     */
+    public synchronized ArrayList<String> seenSince(long since) {
+        ArrayList<String> beacons = new ArrayList<>();
+        for (Record record : mRecords.values()) {
+            if (record.lastSeen >= since) {
+                beacons.add(record.address);
+            }
+        }
+        return beacons;
+    }
+
+    /**
+     * @return the beacon seen last, if that was within the encounter gap,
+     *         else null
+     */
+    public synchronized String current(long now) {
+        Record latest = null;
+        for (Record record : mRecords.values()) {
+            if (latest == null || record.lastSeen > latest.lastSeen) {
+                latest = record;
+            }
+        }
+        return latest != null && now - latest.lastSeen <= mEncounterGap ? latest.address : null;
+    }
+
+    /**
+     * The k beacons with the highest score, highest first.
+     */
+    public synchronized ArrayList<String> topBeacons(int k, final long time) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        // Keep the k best seen so far, weakest at the head
+        PriorityQueue<Record> best = new PriorityQueue<>(k, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return Double.compare(a.scoreAt(time), b.scoreAt(time));
+            }
+        });
+        for (Record record : mRecords.values()) {
+            if (best.size() < k) {
+                best.add(record);
+            } else if (record.scoreAt(time) > best.peek().scoreAt(time)) {
+                best.poll();
+                best.add(record);
+            }
+        }
+        ArrayList<String> beacons = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            beacons.add(best.poll().address);
+        }
+        Collections.reverse(beacons);
+        return beacons;
+    }
+
+    /**
+     * @return the decayed score of a beacon, 0 if it is not remembered
+     */
+    public synchronized double score(String address, long time) {
+        Record record = mRecords.get(address);
+        return record == null ? 0 : record.scoreAt(time);
+    }
+
+    /**
+     * @return the number of encounters with a beacon that started in the
+     *         hours overlapping [since, now], at most a week back
+     */
+    public synchronized int encounters(String address, long since, long now) {
+        Record record = mRecords.get(address);
+        return record == null ? 0 : (int) record.sum(record.encounters, since, now);
+    }
+
+    /**
+     * @return the time spent near a beacon in the hours overlapping
+     *         [since, now], at most a week back, in milliseconds
+     */
+    public synchronized long dwellMillis(String address, long since, long now) {
+        Record record = mRecords.get(address);
+        return record == null ? 0 : record.sum(record.dwellSeconds, since, now) * 1000;
+    }
+
+    /**
+     * @return when a beacon was last seen, or -1 if it is not remembered
+     */
+    public synchronized long lastSeen(String address) {
+        Record record = mRecords.get(address);
+        return record == null ? -1 : record.lastSeen;
+    }
+
+    /**
+     * @return the last reported signal strength of a beacon, or {@link #NO_RSSI}
+     */
+    public synchronized int rssi(String address) {
+        Record record = mRecords.get(address);
+        return record == null ? NO_RSSI : record.rssi;
+    }
+
+    /**
+     * The remembered beacons, address -> name, as a snapshot.
+     */
+    public synchronized HashMap<String, String> names() {
+        HashMap<String, String> names = new HashMap<>(mRecords.size() * 2);
+        for (Record record : mRecords.values()) {
+            names.put(record.address, record.name);
+        }
+        return names;
+    }
+
+    public synchronized int size() {
+        return mRecords.size();
+    }
+}
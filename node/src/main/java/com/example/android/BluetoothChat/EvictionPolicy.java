@@ -0,0 +1,51 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Decides which message a full {@link MessageStore} drops first.
+ *
+ * A policy ranks every stored message; the message with the lowest rank
+ * is evicted. The store keeps the messages ordered by rank and asks the
+ * policy again whenever something the rank may depend on changes: the
+ * message is stored, its spray count or routing utility is updated, or
+ * it is forwarded. Ties go to the message stored first.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * @param entry  A stored message and its bookkeeping
+     * @return the rank of the message, lower is evicted sooner
+     */
+    double rank(MessageStore.Entry entry);
+
+    /** Oldest message first. */
+    EvictionPolicy FIFO = new EvictionPolicy() {
+        @Override
+        public double rank(MessageStore.Entry entry) {
+            return entry.getStoredAt();
+        }
+    };
+
+    /** The message that went longest without being stored or forwarded. */
+    EvictionPolicy LEAST_RECENTLY_FORWARDED = new EvictionPolicy() {
+        @Override
+        public double rank(MessageStore.Entry entry) {
+            return Math.max(entry.getStoredAt(), entry.getForwardedAt());
+        }
+    };
+
+    /** The message with the most copies already handed out. */
+    EvictionPolicy MOST_SPRAYED_FIRST = new EvictionPolicy() {
+        @Override
+        public double rank(MessageStore.Entry entry) {
+            return -entry.getMessage().getSprayCount();
+        }
+    };
+
+    /** The message the routing layer values least, see {@link MessageStore#setUtility(MessageId, double)}. */
+    EvictionPolicy LOWEST_UTILITY = new EvictionPolicy() {
+        @Override
+        public double rank(MessageStore.Entry entry) {
+            return entry.getUtility();
+        }
+    };
+}
@@ -0,0 +1,362 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Which message went to which peer, where and when: the last
+ * {@link #DEFAULT_CAPACITY} hand-offs in a ring buffer of primitive
+ * columns, so the log costs the same whether it holds ten entries or a
+ * month's worth.
+ *
+ * Bluetooth addresses are kept as the 48-bit number they spell. Other
+ * addresses, such as those of the TCP and pipe transports, and beacon
+ * addresses are interned in a name table that is compacted whenever it
+ * outgrows what the live entries can refer to.
+ *
+ * Every entry also points to the previous entry for the same message and
+ * for the same peer, and the newest entry of each is indexed, so "who
+ * got message X" and "what did peer Y get" walk only the matching
+ * entries.
+ */
+public class ForwardLog {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // No beacon known for an entry
+    private static final int NO_BEACON = -1;
+    // No previous entry in a chain
+    private static final long NONE = -1;
+
+    /**
+     * One hand-off, as returned by the queries.
+     */
+    public static class Entry {
+        private final MessageId mMessageId;
+        private final String mPeer;
+        private final String mBeacon;
+        private final long mTime;
+
+        Entry(MessageId messageId, String peer, String beacon, long time) {
+            mMessageId = messageId;
+            mPeer = peer;
+            mBeacon = beacon;
+            mTime = time;
+        }
+
+        public MessageId getMessageId() {
+            return mMessageId;
+        }
+
+        public String getPeer() {
+            return mPeer;
+        }
+
+        /** Beacon nearest to this node at the time, or null. */
+        public String getBeacon() {
+            return mBeacon;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        @Override
+        public String toString() {
+            return mMessageId + " -> " + mPeer + " at " + mBeacon + " " + mTime;
+        }
+    }
+
+    private final int mCapacity;
+
+    // The columns, indexed by sequence number modulo the capacity
+    private final long[] mIdHigh;
+    private final long[] mIdLow;
+    private final long[] mPeers;
+    private final int[] mBeacons;
+    private final long[] mTimes;
+    // Sequence number of the previous entry for the same message or peer
+    private final long[] mPrevForMessage;
+    private final long[] mPrevForPeer;
+
+    // Sequence number of the next entry
+    private long mNext;
+
+    // Newest entry per message and per peer code
+    private final HashMap<MessageId, Long> mLastForMessage = new HashMap<>();
+    private final HashMap<Long, Long> mLastForPeer = new HashMap<>();
+
+    // Interned names: beacons, and peers that are not Bluetooth addresses
+    private ArrayList<String> mNames = new ArrayList<>();
+    private HashMap<String, Integer> mNameIndex = new HashMap<>();
+
+    public ForwardLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity  Number of hand-offs kept
+     */
+    public ForwardLog(int capacity) {
+        mCapacity = capacity;
+        mIdHigh = new long[capacity];
+        mIdLow = new long[capacity];
+        mPeers = new long[capacity];
+        mBeacons = new int[capacity];
+        mTimes = new long[capacity];
+        mPrevForMessage = new long[capacity];
+        mPrevForPeer = new long[capacity];
+    }
+
+    /**
+     * Log that a copy of a message was handed to a peer, overwriting the
+     * oldest entry once the log is full.
+     * @param beacon  Beacon nearest to this node, or null
+     * @param time  Milliseconds since the epoch
+     */
+    public synchronized void record(MessageId id, String peer, String beacon, long time) {
+        if (mNext >= mCapacity) {
+            evict(mNext - mCapacity);
+        }
+        // Live entries refer to at most two names each, so compacting at
+        // twice that at least halves the table
+        if (mNames.size() + 2 > 4 * mCapacity) {
+            compactNames();
+        }
+        long peerCode = peerCode(peer);
+        int slot = (int) (mNext % mCapacity);
+        mIdHigh[slot] = id.getHigh();
+        mIdLow[slot] = id.getLow();
+        mPeers[slot] = peerCode;
+        mBeacons[slot] = beacon == null ? NO_BEACON : intern(beacon);
+        mTimes[slot] = time;
+        Long previous = mLastForMessage.put(id, mNext);
+        mPrevForMessage[slot] = previous == null ? NONE : previous;
+        previous = mLastForPeer.put(peerCode, mNext);
+        mPrevForPeer[slot] = previous == null ? NONE : previous;
+        mNext++;
+    }
+
+    // Drop the index entries that point at the oldest entry, about to be overwritten
+    private void evict(long seq) {
+        int slot = (int) (seq % mCapacity);
+        MessageId id = new MessageId(mIdHigh[slot], mIdLow[slot]);
+        Long last = mLastForMessage.get(id);
+        if (last != null && last == seq) {
+            mLastForMessage.remove(id);
+        }
+        last = mLastForPeer.get(mPeers[slot]);
+        if (last != null && last == seq) {
+            mLastForPeer.remove(mPeers[slot]);
+        }
+    }
+
+    // Sequence number of the oldest entry still in the ring
+    private long oldest() {
+        return Math.max(0, mNext - mCapacity);
+    }
+
+    /**
+     * @return true if a copy of the message was handed to the peer, as far
+     *         back as the log goes
+     */
+    public synchronized boolean forwarded(MessageId id, String peer) {
+        Long code = knownPeerCode(peer);
+        if (code == null) {
+            return false;
+        }
+        long oldest = oldest();
+        for (long seq = chainStart(mLastForMessage.get(id)); seq >= oldest;
+             seq = mPrevForMessage[(int) (seq % mCapacity)]) {
+            if (mPeers[(int) (seq % mCapacity)] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The peers handed a copy of a message, most recent first.
+     */
+    public synchronized ArrayList<String> carriers(MessageId id) {
+        ArrayList<String> carriers = new ArrayList<>();
+        HashSet<Long> seen = new HashSet<>();
+        long oldest = oldest();
+        for (long seq = chainStart(mLastForMessage.get(id)); seq >= oldest;
+             seq = mPrevForMessage[(int) (seq % mCapacity)]) {
+            long code = mPeers[(int) (seq % mCapacity)];
+            if (seen.add(code)) {
+                carriers.add(peerName(code));
+            }
+        }
+        return carriers;
+    }
+
+    /**
+     * The messages handed to a peer, most recent first.
+     */
+    public synchronized ArrayList<MessageId> receivedBy(String peer) {
+        ArrayList<MessageId> received = new ArrayList<>();
+        Long code = knownPeerCode(peer);
+        if (code == null) {
+            return received;
+        }
+        HashSet<MessageId> seen = new HashSet<>();
+        long oldest = oldest();
+        for (long seq = chainStart(mLastForPeer.get(code)); seq >= oldest;
+             seq = mPrevForPeer[(int) (seq % mCapacity)]) {
+            int slot = (int) (seq % mCapacity);
+            MessageId id = new MessageId(mIdHigh[slot], mIdLow[slot]);
+            if (seen.add(id)) {
+                received.add(id);
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Every hand-off of a message, most recent first, for hop analysis.
+     */
+    public synchronized ArrayList<Entry> hops(MessageId id) {
+        ArrayList<Entry> hops = new ArrayList<>();
+        long oldest = oldest();
+        for (long seq = chainStart(mLastForMessage.get(id)); seq >= oldest;
+             seq = mPrevForMessage[(int) (seq % mCapacity)]) {
+            hops.add(entry((int) (seq % mCapacity)));
+        }
+        return hops;
+    }
+
+    /**
+     * The most recent hand-offs, most recent first.
+     */
+    public synchronized ArrayList<Entry> recent(int count) {
+        long first = Math.max(oldest(), mNext - count);
+        ArrayList<Entry> recent = new ArrayList<>((int) (mNext - first));
+        for (long seq = mNext - 1; seq >= first; seq--) {
+            recent.add(entry((int) (seq % mCapacity)));
+        }
+        return recent;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(mNext, mCapacity);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    private static long chainStart(Long last) {
+        return last == null ? NONE : last;
+    }
+
+    private Entry entry(int slot) {
+        return new Entry(new MessageId(mIdHigh[slot], mIdLow[slot]), peerName(mPeers[slot]),
+                mBeacons[slot] == NO_BEACON ? null : mNames.get(mBeacons[slot]), mTimes[slot]);
+    }
+
+    /**
+     * A Bluetooth address as the 48-bit number it spells, or -1 if the
+     * string is not one.
+     */
+    static long parseMac(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            mac = (mac << 4) | digit;
+        }
+        return mac;
+    }
+
+    static String formatMac(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            int b = (int) (mac >>> shift) & 0xff;
+            sb.append(Character.forDigit(b >>> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString().toUpperCase();
+    }
+
+    // Peers with a Bluetooth address are coded as the address, others as -(name index + 1)
+    private long peerCode(String peer) {
+        long mac = parseMac(peer);
+        return mac >= 0 ? mac : -(intern(peer) + 1L);
+    }
+
+    // Like peerCode, without interning a peer the log never saw
+    private Long knownPeerCode(String peer) {
+        long mac = parseMac(peer);
+        if (mac >= 0) {
+            return mac;
+        }
+        Integer index = mNameIndex.get(peer);
+        return index == null ? null : -(index + 1L);
+    }
+
+    private String peerName(long code) {
+        return code >= 0 ? formatMac(code) : mNames.get((int) (-code - 1));
+    }
+
+    private int intern(String name) {
+        Integer index = mNameIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        mNames.add(name);
+        mNameIndex.put(name, mNames.size() - 1);
+        return mNames.size() - 1;
+    }
+
+    // Rebuild the name table from the names live entries refer to
+    private void compactNames() {
+        ArrayList<String> names = new ArrayList<>();
+        HashMap<String, Integer> index = new HashMap<>();
+        int[] remap = new int[mNames.size()];
+        Arrays.fill(remap, -1);
+        for (long seq = oldest(); seq < mNext; seq++) {
+            int slot = (int) (seq % mCapacity);
+            if (mBeacons[slot] != NO_BEACON) {
+                mBeacons[slot] = remapName(mBeacons[slot], remap, names, index);
+            }
+            if (mPeers[slot] < 0) {
+                mPeers[slot] = -(remapName((int) (-mPeers[slot] - 1), remap, names, index) + 1L);
+            }
+        }
+        HashMap<Long, Long> lastForPeer = new HashMap<>(mLastForPeer.size() * 2);
+        for (Long seq : mLastForPeer.values()) {
+            lastForPeer.put(mPeers[(int) (seq % mCapacity)], seq);
+        }
+        mLastForPeer.clear();
+        mLastForPeer.putAll(lastForPeer);
+        mNames = names;
+        mNameIndex = index;
+    }
+
+    private int remapName(int old, int[] remap, ArrayList<String> names, HashMap<String, Integer> index) {
+        if (remap[old] < 0) {
+            remap[old] = names.size();
+            names.add(mNames.get(old));
+            index.put(mNames.get(old), remap[old]);
+        }
+        return remap[old];
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * A single unit of the exchange protocol spoken over the RFCOMM socket.
+ * On the wire every frame is a one byte type, a four byte big-endian
+ * payload length and the payload itself.
+ */
+public class Frame {
+
+    // Frame types
+    // End of the handshake that starts a round, and of the reply to it;
+    // both empty, the beacons come in BEACONS_DELTA
+    public static final int TYPE_GET_BEACONS = 1;
+    public static final int TYPE_BEACONS_REPLY = 2;
+    public static final int TYPE_MSG = 3;
+    public static final int TYPE_TEXT = 4;
+    public static final int TYPE_DIGEST = 5;
+    public static final int TYPE_PROFILE = 6;
+    // Name of the sender's routing strategy followed by its state
+    public static final int TYPE_ROUTING = 7;
+    // Message ID and whether the receiver took the copies, one frame per MSG frame
+    public static final int TYPE_ACK = 8;
+    // Sender has nothing more for this round: the number of MSG frames it sent
+    public static final int TYPE_DONE = 9;
+    // IDs of messages that reached their destination, see DeliveredSet
+    public static final int TYPE_DELIVERED = 10;
+    // Protocol version of the sender, first frame of its handshake
+    public static final int TYPE_HELLO = 11;
+    // Sender has news, the receiver should start a round on the open link
+    public static final int TYPE_SYNC = 12;
+    // Nothing else to send for a while, the link is still there
+    public static final int TYPE_KEEPALIVE = 13;
+    // Changes to the sender's beacon list since a version the receiver holds, or all of it
+    public static final int TYPE_BEACONS_DELTA = 14;
+    // Changes to the sender's store digest since a version the receiver holds
+    public static final int TYPE_DIGEST_DELTA = 15;
+
+    // Type byte followed by the payload length
+    public static final int HEADER_LENGTH = 5;
+
+    // Upper bound for a single payload, anything larger is treated as a corrupt stream
+    public static final int MAX_PAYLOAD_LENGTH = 4 * 1024 * 1024;
+
+    private final int type;
+    private final byte[] payload;
+
+    public Frame(int type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Build the wire representation of a frame.
+     * @param type  One of the TYPE_* constants
+     * @param payload  The payload bytes, may be empty
+     * @return header and payload in a single array, ready for one write() call
+     */
+    public static byte[] encode(int type, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload too large: " + payload.length);
+        }
+        byte[] frame = new byte[HEADER_LENGTH + payload.length];
+        encodeHeader(type, payload.length, frame, 0);
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    /**
+     * Write the header of a frame into a buffer.
+     * @param offset  Where the HEADER_LENGTH header bytes go
+     */
+    public static void encodeHeader(int type, int length, byte[] buffer, int offset) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Frame payload too large: " + length);
+        }
+        buffer[offset] = (byte) type;
+        buffer[offset + 1] = (byte) (length >>> 24);
+        buffer[offset + 2] = (byte) (length >>> 16);
+        buffer[offset + 3] = (byte) (length >>> 8);
+        buffer[offset + 4] = (byte) length;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * Incremental decoder for the length-prefixed frames described in {@link Frame}.
+ * Bytes are appended as they come off the socket, whatever the read
+ * boundaries are, and complete frames are handed out one at a time.
+ * The receive buffer is reused between reads and only grows when a
+ * frame does not fit into it.
+ */
+public class FrameDecoder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] mBuffer;
+    // Unconsumed bytes live in mBuffer[mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+
+    public FrameDecoder() {
+        mBuffer = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add freshly read bytes to the decoder.
+     * @param data  The buffer passed to InputStream.read()
+     * @param offset  Offset of the first valid byte
+     * @param length  Number of valid bytes
+     */
+    public void append(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mBuffer, mEnd, length);
+        mEnd += length;
+    }
+
+    /**
+     * Take the next complete frame out of the buffer.
+     * @return the frame, or null if more bytes are needed
+     * @throws IOException if the stream announces an impossible payload length
+     */
+    public Frame next() throws IOException {
+        int pending = mEnd - mStart;
+        if (pending < Frame.HEADER_LENGTH) {
+            return null;
+        }
+
+        int type = mBuffer[mStart] & 0xff;
+        int length = ((mBuffer[mStart + 1] & 0xff) << 24)
+                | ((mBuffer[mStart + 2] & 0xff) << 16)
+                | ((mBuffer[mStart + 3] & 0xff) << 8)
+                | (mBuffer[mStart + 4] & 0xff);
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length " + length + " for type " + type);
+        }
+        if (pending < Frame.HEADER_LENGTH + length) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        System.arraycopy(mBuffer, mStart + Frame.HEADER_LENGTH, payload, 0, length);
+        mStart += Frame.HEADER_LENGTH + length;
+        if (mStart == mEnd) {
+            // Nothing left over, rewind so the next read starts at the front
+            mStart = 0;
+            mEnd = 0;
+        }
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Number of buffered bytes that do not form a complete frame yet.
+     */
+    public int pending() {
+        return mEnd - mStart;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mEnd + extra <= mBuffer.length) {
+            return;
+        }
+        int pending = mEnd - mStart;
+        byte[] target = mBuffer;
+        if (pending + extra > mBuffer.length) {
+            int capacity = mBuffer.length;
+            while (capacity < pending + extra) {
+                capacity *= 2;
+            }
+            target = new byte[capacity];
+        }
+        // Move the partial frame to the front of the (possibly new) buffer
+        System.arraycopy(mBuffer, mStart, target, 0, pending);
+        mBuffer = target;
+        mStart = 0;
+        mEnd = pending;
+    }
+}
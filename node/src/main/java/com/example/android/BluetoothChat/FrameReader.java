@@ -0,0 +1,115 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The reading half of a session: a thread that owns the link's input
+ * stream, cuts what arrives into frames and queues them for the session
+ * thread. The session thread is then the only one that handles frames
+ * and touches the session's state, and can look at what arrived while it
+ * is busy sending without blocking.
+ *
+ * Other threads that need the session thread to act call {@link #wake()}
+ * after leaving a note where it will look, e.g. a flag.
+ */
+public class FrameReader extends Thread {
+
+    private static final int BUFFER_BYTES = 1024;
+
+    // Queue markers, compared by identity
+    private static final Frame WAKE = new Frame(0, new byte[0]);
+    private static final Frame END = new Frame(0, new byte[0]);
+
+    /**
+     * Callbacks from the reader thread.
+     */
+    public interface Listener {
+
+        /**
+         * Bytes came in on the link, before they are cut into frames.
+         */
+        void onBytesRead(int bytes);
+    }
+
+    private final InputStream mIn;
+    private final Listener mListener;
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final LinkedBlockingQueue<Frame> mFrames = new LinkedBlockingQueue<>();
+    // Why the link broke, set before END is queued
+    private volatile IOException mError;
+
+    public FrameReader(InputStream in, Listener listener) {
+        mIn = in;
+        mListener = listener;
+        setDaemon(true);
+    }
+
+    /**
+     * Wait for the next frame.
+     * @return the frame, or null if {@link #wake()} was called
+     * @throws IOException once the link broke and every frame before that was taken
+     */
+    public Frame take() throws IOException {
+        Frame frame;
+        try {
+            frame = mFrames.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading", e);
+        }
+        return checked(frame);
+    }
+
+    /**
+     * The next frame that already arrived, without blocking.
+     * @return the frame, or null if there is none
+     * @throws IOException once the link broke and every frame before that was taken
+     */
+    public Frame poll() throws IOException {
+        Frame frame;
+        do {
+            frame = checked(mFrames.poll());
+        } while (frame == null && mFrames.peek() != null);
+        return frame;
+    }
+
+    private Frame checked(Frame frame) throws IOException {
+        if (frame == END) {
+            // Every later call fails the same way
+            mFrames.offer(END);
+            throw mError;
+        }
+        return frame == WAKE ? null : frame;
+    }
+
+    /**
+     * Make a {@link #take()} in progress, or the next one, return null.
+     */
+    public void wake() {
+        mFrames.offer(WAKE);
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try {
+            while (true) {
+                int bytes = mIn.read(buffer);
+                if (bytes < 0) {
+                    throw new IOException("Input stream closed");
+                }
+                mDecoder.append(buffer, 0, bytes);
+                mListener.onBytesRead(bytes);
+                Frame frame;
+                while ((frame = mDecoder.next()) != null) {
+                    mFrames.offer(frame);
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+            mFrames.offer(END);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The writing half of a session: a thread that owns the link's output
+ * stream and empties a bounded queue of frames into it, so that neither
+ * the reader thread nor the UI ever blocks on a slow link.
+ *
+ * Frames are coalesced: the writer waits until a producer calls
+ * {@link #flush()} or a batch of {@link #BATCH_BYTES} has built up, then
+ * sends everything queued so far in as few write() calls as it can. The
+ * queue holds at most a fixed number of bytes; {@link #offer} refuses a
+ * frame that does not fit and {@link #write} waits for room, which is
+ * how producers learn to slow down. Control frames skip the bound, see
+ * {@link #writeControl}. A write that makes no progress for
+ * the stall timeout shows in {@link #isStalled(long)}, so the owner can
+ * close the link.
+ */
+public class FrameWriter extends Thread {
+
+    private static final Logger LOG = Logger.getLogger("FrameWriter");
+
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 64 * 1024;
+    // Bytes gathered into one write() call, a few RFCOMM packets
+    public static final int BATCH_BYTES = 8 * 1024;
+    public static final long DEFAULT_STALL_MILLIS = 15 * 1000;
+
+    /**
+     * Callbacks from the writer thread.
+     */
+    public interface Listener {
+
+        /**
+         * A frame went out on the link.
+         */
+        void onFrameWritten(Frame frame);
+
+        /**
+         * The link broke while writing. The writer is closed.
+         */
+        void onWriteFailed(IOException e);
+    }
+
+    private final OutputStream mOut;
+    private final Listener mListener;
+    private final int mMaxQueuedBytes;
+    private final long mStallMillis;
+
+    private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+    private int mQueuedBytes;
+    // Running totals of bytes queued and written, and of the bytes queued
+    // at the last flush point
+    private long mEnqueued;
+    private long mWritten;
+    private long mFlushTo;
+    // When the write() in progress started, 0 if there is none
+    private long mWriteStartedAt;
+    private boolean mClosed;
+
+    public FrameWriter(OutputStream out, Listener listener) {
+        this(out, listener, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_STALL_MILLIS);
+    }
+
+    /**
+     * @param maxQueuedBytes  Most bytes waiting in the queue, though a
+     *                        single larger frame is let into an empty queue
+     * @param stallMillis  How long one write() may block before the writer
+     *                     counts as stalled
+     */
+    public FrameWriter(OutputStream out, Listener listener, int maxQueuedBytes, long stallMillis) {
+        mOut = out;
+        mListener = listener;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mStallMillis = stallMillis;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a frame if it fits, without blocking.
+     * @return false if the queue is full or the writer closed
+     */
+    public synchronized boolean offer(int type, byte[] payload) {
+        if (mClosed || !fits(Frame.HEADER_LENGTH + payload.length)) {
+            return false;
+        }
+        enqueue(new Frame(type, payload));
+        return true;
+    }
+
+    /**
+     * Queue a frame, waiting for room up to the stall timeout.
+     * @return false if the writer closed or made no room in time
+     */
+    public synchronized boolean write(int type, byte[] payload) {
+        if (!awaitSpace(payload.length, mStallMillis)) {
+            return false;
+        }
+        enqueue(new Frame(type, payload));
+        return true;
+    }
+
+    /**
+     * Queue a small control frame (ACK, DONE, ...) without blocking, past
+     * the byte bound. A side that answers the peer while its own copies
+     * fill the queue must not wait for them to drain: with both sides
+     * sending, each would wait for the other to read. Control frames keep
+     * their place in line, so the peer sees them in the order they were
+     * queued.
+     * @return false if the writer closed
+     */
+    public synchronized boolean writeControl(int type, byte[] payload) {
+        if (mClosed) {
+            return false;
+        }
+        enqueue(new Frame(type, payload));
+        return true;
+    }
+
+    /**
+     * Wait until a frame with a payload of the given size fits.
+     * @return true if it fits now, false on timeout or once the writer closed
+     */
+    public synchronized boolean awaitSpace(int payloadLength, long millis) {
+        int bytes = Frame.HEADER_LENGTH + payloadLength;
+        long deadline = System.currentTimeMillis() + millis;
+        try {
+            while (!mClosed && !fits(bytes)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !mClosed;
+    }
+
+    private boolean fits(int bytes) {
+        return mQueuedBytes == 0 || mQueuedBytes + bytes <= mMaxQueuedBytes;
+    }
+
+    private void enqueue(Frame frame) {
+        int bytes = Frame.HEADER_LENGTH + frame.getPayload().length;
+        mQueue.add(frame);
+        mQueuedBytes += bytes;
+        mEnqueued += bytes;
+        if (mQueuedBytes >= BATCH_BYTES) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Flush point: send everything queued so far without waiting for a
+     * full batch. Does not block.
+     */
+    public synchronized void flush() {
+        if (mFlushTo < mEnqueued) {
+            mFlushTo = mEnqueued;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Flush and wait until everything queued so far is written, e.g.
+     * before the link is closed.
+     * @return true if the queue drained in time
+     */
+    public synchronized boolean drain(long millis) {
+        flush();
+        long target = mEnqueued;
+        long deadline = System.currentTimeMillis() + millis;
+        try {
+            while (!mClosed && mWritten < target) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return mWritten >= target;
+    }
+
+    /**
+     * @return true if a write() has been blocked for longer than the stall timeout
+     */
+    public synchronized boolean isStalled(long now) {
+        return mWriteStartedAt != 0 && now - mWriteStartedAt > mStallMillis;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Stop the writer, dropping what is still queued. A write() in
+     * progress only returns once the link is closed.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mQueue.clear();
+        mQueuedBytes = 0;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        byte[] batch = new byte[BATCH_BYTES];
+        ArrayList<Frame> frames = new ArrayList<>();
+        while (true) {
+            frames.clear();
+            int bytes = 0;
+            synchronized (this) {
+                try {
+                    while (!mClosed && (mQueue.isEmpty()
+                            || (mWritten >= mFlushTo && mQueuedBytes < BATCH_BYTES))) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mClosed) {
+                    return;
+                }
+                // Take a batch, at least one frame however large
+                while (!mQueue.isEmpty()
+                        && (frames.isEmpty() || bytes + frameBytes(mQueue.peek()) <= BATCH_BYTES)) {
+                    Frame frame = mQueue.poll();
+                    frames.add(frame);
+                    bytes += frameBytes(frame);
+                }
+                mWriteStartedAt = Math.max(1, System.currentTimeMillis());
+            }
+
+            try {
+                writeBatch(frames, batch);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Exception during write", e);
+                close();
+                mListener.onWriteFailed(e);
+                return;
+            }
+
+            synchronized (this) {
+                mWriteStartedAt = 0;
+                mWritten += bytes;
+                if (!mClosed) {
+                    mQueuedBytes -= bytes;
+                }
+                notifyAll();
+            }
+            for (Frame frame : frames) {
+                mListener.onFrameWritten(frame);
+            }
+        }
+    }
+
+    private static int frameBytes(Frame frame) {
+        return Frame.HEADER_LENGTH + frame.getPayload().length;
+    }
+
+    // Copy the frames into the batch buffer, writing larger payloads straight from their arrays
+    private void writeBatch(ArrayList<Frame> frames, byte[] batch) throws IOException {
+        int length = 0;
+        for (Frame frame : frames) {
+            byte[] payload = frame.getPayload();
+            if (length + Frame.HEADER_LENGTH > batch.length) {
+                mOut.write(batch, 0, length);
+                length = 0;
+            }
+            Frame.encodeHeader(frame.getType(), payload.length, batch, length);
+            length += Frame.HEADER_LENGTH;
+            if (length + payload.length <= batch.length) {
+                System.arraycopy(payload, 0, batch, length, payload.length);
+                length += payload.length;
+            } else {
+                mOut.write(batch, 0, length);
+                mOut.write(payload);
+                length = 0;
+            }
+        }
+        if (length > 0) {
+            mOut.write(batch, 0, length);
+        }
+        mOut.flush();
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.android.BluetoothChat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A duplex byte stream to one remote node. Outgoing links are created
+ * unconnected by {@link Transport#createLink(String)} so that another
+ * thread can abort a slow {@link #connect()} by closing the link, just
+ * like a BluetoothSocket. Links returned by {@link LinkListener#accept()}
+ * are already connected.
+ */
+public interface Link extends Closeable {
+
+    /**
+     * Block until the link is established or fails.
+     */
+    void connect() throws IOException;
+
+    Peer getPeer();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the link, unblocking any thread in connect(), read() or write().
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,18 @@
+package com.example.android.BluetoothChat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Server side of a {@link Transport}, the counterpart of a BluetoothServerSocket.
+ */
+public interface LinkListener extends Closeable {
+
+    /**
+     * Block until a remote node connects.
+     * @throws IOException once the listener is closed
+     */
+    Link accept() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,55 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Location-aware forwarding decision of SpotNet: a message moves to a
+ * peer only if the peer is closer to the message's target beacon than
+ * the node carrying it, closeness coming from the two mobility profiles.
+ *
+ * The decision is made per beacon rather than per message. For one
+ * contact the router compares the peer's profile with ours once per
+ * beacon the peer reported, and the store's beacon index then yields
+ * the messages for the beacons where the peer wins. The cost of a
+ * contact does not depend on how many messages are buffered.
+ */
+public class LocationRouter {
+
+    private final MobilityProfile mProfile;
+
+    /**
+     * @param profile  Mobility profile of this node
+     */
+    public LocationRouter(MobilityProfile profile) {
+        mProfile = profile;
+    }
+
+    public MobilityProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Beacons whose messages should move to the peer.
+     * @param peerScores  Closeness of the peer per beacon, from its PROFILE
+     *                    frame, or null if the peer did not send one
+     * @param peerBeacons  Beacons the peer reported having seen, used
+     *                     when there is no profile
+     * @param time  Current time in milliseconds since the epoch
+     */
+    public ArrayList<String> closerBeacons(Map<String, Double> peerScores,
+                                           Collection<String> peerBeacons, long time) {
+        if (peerScores == null) {
+            // Older peers: having seen the beacon at all is all we know
+            return new ArrayList<>(peerBeacons);
+        }
+        ArrayList<String> beacons = new ArrayList<>();
+        for (Map.Entry<String, Double> peer : peerScores.entrySet()) {
+            if (peer.getValue() > mProfile.closeness(peer.getKey(), time)) {
+                beacons.add(peer.getKey());
+            }
+        }
+        return beacons;
+    }
+}
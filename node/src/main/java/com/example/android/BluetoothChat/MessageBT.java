@@ -0,0 +1,164 @@
+package com.example.android.BluetoothChat;
+
+import java.io.Serializable;
+
+/**
+ * Created by holod on 12/10/15.
+ */
+public class MessageBT implements Serializable{
+
+    private static final long serialVersionUID = 1L;
+
+    // Spray-and-Wait copy budget given to a new message
+    public static final int DEFAULT_COPIES = 8;
+
+    // Lifetime given to a new message
+    public static final long DEFAULT_TTL_MILLIS = 3L * 24 * 60 * 60 * 1000;
+
+    private MessageId id;
+    private String text;
+    private String destination;
+    private String beaconId;
+    private volatile int sprayCount;
+    // Copies this node may still hand out, including its own; 1 means wait phase
+    private volatile int copies;
+    // Creation time on the originating node, milliseconds since the epoch
+    private long createdAt;
+    // Lifetime from createdAt, in milliseconds
+    private long ttl;
+    //    private ArrayList<String> beacons;
+    private static int messageCount;
+
+
+    public MessageBT(String text, String destination, String beaconId) {
+//        this.id = messageCount++;
+        this.id = MessageId.random();
+        this.text = text;
+        this.destination = destination;
+        this.beaconId = beaconId;
+        int spraycount = 0;
+        this.sprayCount = spraycount;
+        this.copies = DEFAULT_COPIES;
+        this.createdAt = System.currentTimeMillis();
+        this.ttl = DEFAULT_TTL_MILLIS;
+//        beacons = new ArrayList<>();
+    }
+
+    /**
+     * Rebuild a message received from a peer or read back from storage.
+     */
+    public MessageBT(MessageId id, String text, String destination, String beaconId,
+                     int sprayCount, int copies, long createdAt, long ttl) {
+        this.id = id;
+        this.text = text;
+        this.destination = destination;
+        this.beaconId = beaconId;
+        this.sprayCount = sprayCount;
+        this.copies = copies;
+        this.createdAt = createdAt;
+        this.ttl = ttl;
+    }
+
+    public MessageId getId() {
+        return this.id;
+    }
+
+    //Complete getters
+
+//    public ArrayList<String> getBeacons() {
+//        return beacons;
+//    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public String getBeaconId() {
+        return beaconId;
+    }
+
+    public int getSprayCount() {
+        return sprayCount;
+    }
+
+    public int getCopies() {
+        return copies;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return when the message expires, milliseconds since the epoch
+     */
+    public long getExpiresAt() {
+        long expiresAt = createdAt + ttl;
+        // A huge TTL must not wrap around into the past
+        return expiresAt < createdAt ? Long.MAX_VALUE : expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= getExpiresAt();
+    }
+
+
+    public void setId(MessageId id) {
+        this.id = id;
+    }
+
+    //Complete Setters
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public void setBeaconId(String beaconId) {
+        this.beaconId = beaconId;
+    }
+
+    public void setSprayCount(int sprayCount) {
+        this.sprayCount = sprayCount;
+    }
+
+    public void setCopies(int copies) {
+        this.copies = copies;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+//    public void setBeacons(ArrayList<String> beacons) {
+//        this.beacons = beacons;
+//    }
+
+
+//    public void addBeacon(String beacon) {
+//        beacons.add(beacon);
+//    }
+
+//    public void removeBeacon(String beacon) {
+//        beacons.remove(beacon);
+//    }
+
+
+
+
+}
@@ -0,0 +1,124 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of MessageBT batches carried in MSG frames.
+ *
+ * A batch is a version byte and a varint count followed by the messages.
+ * Each message starts with a flag byte telling how its optional and
+ * address fields are stored, then the id, text, destination, beacon id
+ * spray count, Spray-and-Wait copy budget, creation time and TTL. The
+ * 128-bit id takes two fixed longs. Addresses in canonical form take six
+ * bytes, anything else is sent as a UTF-8 string so the round trip is
+ * always exact.
+ */
+public class MessageCodec {
+
+    public static final int VERSION = 1;
+
+    // Per message field flags
+    private static final int FLAG_TEXT_NULL = 1;
+    private static final int FLAG_DESTINATION_NULL = 1 << 1;
+    private static final int FLAG_DESTINATION_MAC = 1 << 2;
+    private static final int FLAG_BEACON_NULL = 1 << 3;
+    private static final int FLAG_BEACON_MAC = 1 << 4;
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(List<MessageBT> messages) {
+        WireWriter out = new WireWriter(32 + messages.size() * 48);
+        out.writeByte(VERSION);
+        out.writeVarInt(messages.size());
+        for (MessageBT message : messages) {
+            encodeMessage(out, message);
+        }
+        return out.toByteArray();
+    }
+
+    public static ArrayList<MessageBT> decode(byte[] payload) throws IOException {
+        WireReader in = new WireReader(payload);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported message batch version " + version);
+        }
+        int count = in.readVarInt();
+        // Every message takes at least a few bytes, so a huge count means garbage
+        if (count > in.remaining()) {
+            throw new IOException("Message count " + count + " exceeds payload");
+        }
+        ArrayList<MessageBT> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(decodeMessage(in));
+        }
+        return messages;
+    }
+
+    static void encodeMessage(WireWriter out, MessageBT message) {
+        String text = message.getText();
+        String destination = message.getDestination();
+        String beaconId = message.getBeaconId();
+
+        int flags = 0;
+        if (text == null) flags |= FLAG_TEXT_NULL;
+        if (destination == null) flags |= FLAG_DESTINATION_NULL;
+        else if (WireWriter.isMac(destination)) flags |= FLAG_DESTINATION_MAC;
+        if (beaconId == null) flags |= FLAG_BEACON_NULL;
+        else if (WireWriter.isMac(beaconId)) flags |= FLAG_BEACON_MAC;
+
+        out.writeByte(flags);
+        writeId(out, message.getId());
+        if (text != null) out.writeString(text);
+        writeAddress(out, destination, flags & FLAG_DESTINATION_MAC);
+        writeAddress(out, beaconId, flags & FLAG_BEACON_MAC);
+        out.writeZigZag(message.getSprayCount());
+        out.writeVarInt(message.getCopies());
+        out.writeVarLong(message.getCreatedAt());
+        out.writeVarLong(message.getTtl());
+    }
+
+    static MessageBT decodeMessage(WireReader in) throws IOException {
+        int flags = in.readByte();
+        MessageId id = readId(in);
+        String text = (flags & FLAG_TEXT_NULL) != 0 ? null : in.readString();
+        String destination = readAddress(in, flags & FLAG_DESTINATION_NULL, flags & FLAG_DESTINATION_MAC);
+        String beaconId = readAddress(in, flags & FLAG_BEACON_NULL, flags & FLAG_BEACON_MAC);
+        int sprayCount = (int) in.readZigZag();
+        int copies = in.readVarInt();
+        long createdAt = in.readVarLong();
+        long ttl = in.readVarLong();
+
+        return new MessageBT(id, text, destination, beaconId, sprayCount, copies, createdAt, ttl);
+    }
+
+    static void writeId(WireWriter out, MessageId id) {
+        out.writeLong(id.getHigh());
+        out.writeLong(id.getLow());
+    }
+
+    static MessageId readId(WireReader in) throws IOException {
+        long high = in.readLong();
+        return new MessageId(high, in.readLong());
+    }
+
+    private static void writeAddress(WireWriter out, String value, int macFlag) {
+        if (value == null) {
+            return;
+        }
+        if (macFlag != 0) {
+            out.writeMac(value);
+        } else {
+            out.writeString(value);
+        }
+    }
+
+    private static String readAddress(WireReader in, int nullFlag, int macFlag) throws IOException {
+        if (nullFlag != 0) {
+            return null;
+        }
+        return macFlag != 0 ? in.readMac() : in.readString();
+    }
+}
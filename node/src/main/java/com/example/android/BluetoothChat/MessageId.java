@@ -0,0 +1,92 @@
+package com.example.android.BluetoothChat;
+
+import java.io.Serializable;
+import java.security.SecureRandom;
+
+/**
+ * Globally unique message identifier: 128 random bits kept as two longs.
+ *
+ * With 128 bits the chance that any two of a billion messages ever share
+ * an id is around 10^-21, so nodes can create IDs without coordinating.
+ */
+public final class MessageId implements Comparable<MessageId>, Serializable {
+
+    // MessageBT is Serializable and holds one
+    private static final long serialVersionUID = 1L;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long mHigh;
+    private final long mLow;
+
+    public MessageId(long high, long low) {
+        mHigh = high;
+        mLow = low;
+    }
+
+    /**
+     * @return a fresh random id
+     */
+    public static MessageId random() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[i] & 0xff);
+            low = (low << 8) | (bytes[i + 8] & 0xff);
+        }
+        return new MessageId(high, low);
+    }
+
+    public long getHigh() {
+        return mHigh;
+    }
+
+    public long getLow() {
+        return mLow;
+    }
+
+    /**
+     * A well mixed 64-bit summary of the id for hash based structures such
+     * as {@link StoreDigest} and {@link SeenFilter}.
+     */
+    public long hash64() {
+        long h = mHigh * 0x9E3779B97F4A7C15L + mLow;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageId)) {
+            return false;
+        }
+        MessageId other = (MessageId) o;
+        return mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = mHigh ^ mLow;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public int compareTo(MessageId other) {
+        int c = Long.compare(mHigh, other.mHigh);
+        return c != 0 ? c : Long.compare(mLow, other.mLow);
+    }
+
+    /**
+     * @return the id as 32 hex digits
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", mHigh, mLow);
+    }
+}
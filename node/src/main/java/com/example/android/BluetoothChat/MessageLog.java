@@ -0,0 +1,486 @@
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file that keeps a {@link MessageStore} across restarts.
+ *
+ * Every change to the store is appended as a record: a stored message,
+ * a new spray count or copy budget, or a removal, and so is every
+ * delivery the node's {@link DeliveredSet} learns. A record is a 4 byte
+ * payload length, a CRC32 of the type and payload, the type byte and the
+ * payload. On open the file is mapped read-only and replayed into the
+ * store; replay stops at the first truncated or corrupt record and the
+ * file is cut there, so a write interrupted by a crash loses at most
+ * that record.
+ *
+ * Superseded records are garbage. Once they outweigh the live data a
+ * background thread rewrites the file with one record per live message,
+ * after a snapshot of the store's {@link SeenFilter} and of the delivered
+ * set: the records of messages dropped long ago go, but a dropped or
+ * delivered message must not come back.
+ * Records appended while it runs are copied over before the switch.
+ *
+ * Appends from different threads do not wait for each other: each one
+ * reserves its place at the end of the file and writes there, so only
+ * records for the same message, which come in order under the store's
+ * stripe lock, keep their order. A crash may then leave a gap before
+ * the last records, which replay treats like a damaged tail. Only the
+ * switch to a compacted file waits for the appends in flight.
+ */
+public class MessageLog {
+    private static final Logger LOG = Logger.getLogger("MessageLog");
+
+    // MessageCodec version byte followed by the message
+    static final int TYPE_PUT = 1;
+    static final int TYPE_SPRAY = 2;
+    static final int TYPE_REMOVE = 3;
+    // SeenFilter state, written first by a compaction
+    static final int TYPE_SEEN = 4;
+    static final int TYPE_COPIES = 5;
+    // Deliveries as in a DELIVERED frame, newest first
+    static final int TYPE_DELIVERED = 6;
+
+    private static final int HEADER_LENGTH = 9;
+
+    // Compact when the file is this much larger than its live records
+    private static final int COMPACT_RATIO = 2;
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private final File mFile;
+    // Appends hold it shared; switching files and closing hold it exclusively
+    private final ReentrantReadWriteLock mFileLock = new ReentrantReadWriteLock();
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private volatile MessageStore mStore;
+    private DeliveredSet mDelivered;
+
+    // id -> length of the record holding the live copy of that message
+    private final ConcurrentHashMap<MessageId, Integer> mLiveRecords = new ConcurrentHashMap<>();
+    private final AtomicLong mLiveBytes = new AtomicLong();
+    // Length of the snapshot records the last compaction wrote
+    private volatile long mSnapshotBytes;
+    // Messages put or removed while a compaction runs, their tail records win
+    private volatile Set<MessageId> mCompactTouched;
+    // End of the file, including the records being written
+    private final AtomicLong mLength = new AtomicLong();
+    private CompactThread mCompactThread;
+    private volatile boolean mClosed;
+
+    /**
+     * Open the log, creating the file if needed.
+     * @param file  Where the records are kept
+     */
+    public MessageLog(File file) throws IOException {
+        mFile = file;
+        openChannel();
+    }
+
+    private void openChannel() throws IOException {
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        mLength.set(mChannel.size());
+    }
+
+    /**
+     * Rebuild a store and a delivered set from the log and attach the log
+     * to them, so that from now on every change to them is recorded.
+     * @param store  An empty store
+     * @param delivered  An empty delivered set
+     * @return the number of records replayed
+     */
+    public synchronized int replay(MessageStore store, DeliveredSet delivered) throws IOException {
+        int records = 0;
+        long valid = 0;
+        int previousType = 0;
+        long end = mLength.get();
+        if (end > 0) {
+            MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            byte[] payload = new byte[256];
+            while (buffer.remaining() >= HEADER_LENGTH) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                int type = buffer.get() & 0xff;
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                buffer.get(payload, 0, length);
+                if (crc != checksum(type, payload, length)) {
+                    break;
+                }
+                try {
+                    apply(store, delivered, type, new WireReader(payload, 0, length), HEADER_LENGTH + length);
+                } catch (IOException e) {
+                    break;
+                }
+                if (type == TYPE_DELIVERED && previousType == TYPE_SEEN) {
+                    // The deliveries of the compaction snapshot
+                    mSnapshotBytes += HEADER_LENGTH + length;
+                }
+                previousType = type;
+                valid = start + HEADER_LENGTH + length;
+                records++;
+            }
+        }
+        if (valid < end) {
+            LOG.warning("Dropping " + (end - valid) + " bytes of damaged log tail");
+            mChannel.truncate(valid);
+            mLength.set(valid);
+        }
+        mStore = store;
+        mDelivered = delivered;
+        store.setLog(this);
+        delivered.setLog(this);
+        return records;
+    }
+
+    private void apply(MessageStore store, DeliveredSet delivered, int type, WireReader in, int recordLength)
+            throws IOException {
+        switch (type) {
+        case TYPE_PUT: {
+            if (in.readByte() != MessageCodec.VERSION) {
+                throw new IOException("Unsupported message version in log");
+            }
+            MessageBT message = MessageCodec.decodeMessage(in);
+            store.put(message);
+            setLive(message.getId(), recordLength);
+            break;
+        }
+        case TYPE_SPRAY: {
+            MessageId id = MessageCodec.readId(in);
+            store.setSprayCount(id, (int) in.readZigZag());
+            break;
+        }
+        case TYPE_COPIES: {
+            MessageId id = MessageCodec.readId(in);
+            store.setCopies(id, in.readVarInt());
+            break;
+        }
+        case TYPE_REMOVE: {
+            MessageId id = MessageCodec.readId(in);
+            store.remove(id);
+            setLive(id, 0);
+            break;
+        }
+        case TYPE_SEEN:
+            // Filters of another size start over from the messages replayed
+            store.readSeen(in);
+            mSnapshotBytes = recordLength;
+            break;
+        case TYPE_DELIVERED: {
+            // Oldest first, so the set drops the same entries when full
+            ArrayList<Map.Entry<MessageId, Long>> entries =
+                    new ArrayList<>(DeliveredSet.decode(in).entrySet());
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                delivered.add(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+            break;
+        }
+        default:
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    void appendPut(MessageBT message) {
+        append(TYPE_PUT, encodePut(message), message.getId(), true);
+    }
+
+    void appendSprayCount(MessageId id, int sprayCount) {
+        WireWriter out = new WireWriter(24);
+        MessageCodec.writeId(out, id);
+        append(TYPE_SPRAY, out.writeZigZag(sprayCount), null, false);
+    }
+
+    void appendCopies(MessageId id, int copies) {
+        WireWriter out = new WireWriter(24);
+        MessageCodec.writeId(out, id);
+        append(TYPE_COPIES, out.writeVarInt(copies), null, false);
+    }
+
+    void appendDelivered(MessageId id, long expiresAt) {
+        WireWriter out = new WireWriter(24);
+        out.writeVarInt(1);
+        MessageCodec.writeId(out, id);
+        append(TYPE_DELIVERED, out.writeVarLong(expiresAt / 1000), null, false);
+    }
+
+    void appendRemove(MessageId id) {
+        WireWriter out = new WireWriter(16);
+        MessageCodec.writeId(out, id);
+        append(TYPE_REMOVE, out, id, false);
+    }
+
+    private static WireWriter encodePut(MessageBT message) {
+        WireWriter out = new WireWriter(64);
+        out.writeByte(MessageCodec.VERSION);
+        MessageCodec.encodeMessage(out, message);
+        return out;
+    }
+
+    // Called for one id at a time under its stripe lock, see the class comment
+    private void setLive(MessageId id, int recordLength) {
+        Set<MessageId> touched = mCompactTouched;
+        if (touched != null) {
+            touched.add(id);
+        }
+        Integer previous = recordLength > 0
+                ? mLiveRecords.put(id, recordLength) : mLiveRecords.remove(id);
+        mLiveBytes.addAndGet(recordLength - (previous == null ? 0 : previous));
+    }
+
+    /**
+     * Write one record at the end of the file.
+     * @param id  Message whose live record this puts or removes, or null
+     * @param live  Whether the record is now the live one of that message
+     */
+    private void append(int type, WireWriter out, MessageId id, boolean live) {
+        byte[] record = record(type, out.toByteArray());
+        mFileLock.readLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            long position = mLength.getAndAdd(record.length);
+            int length = record.length;
+            try {
+                writeFully(mChannel, ByteBuffer.wrap(record), position);
+            } catch (IOException e) {
+                // The store in memory is still right, only durability
+                // suffers: replay stops at the gap as after a crash
+                LOG.log(Level.WARNING, "Unable to append to message log", e);
+                length = 0;
+            }
+            if (id != null && (length > 0 || !live)) {
+                setLive(id, live ? length : 0);
+            }
+        } finally {
+            mFileLock.readLock().unlock();
+        }
+        maybeCompact();
+    }
+
+    private static byte[] record(int type, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(type, payload, payload.length));
+        record.put((byte) type);
+        record.put(payload);
+        return record.array();
+    }
+
+    private static int checksum(int type, byte[] payload, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void maybeCompact() {
+        long length = mLength.get();
+        if (mStore == null || length <= COMPACT_MIN_BYTES
+                || length <= COMPACT_RATIO * (mLiveBytes.get() + mSnapshotBytes)) {
+            return;
+        }
+        synchronized (this) {
+            if (mCompactThread == null) {
+                mCompactThread = new CompactThread();
+                mCompactThread.start();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log with only the live messages, on the calling thread.
+     */
+    public void compact() throws IOException {
+        long snapshotEnd;
+        mFileLock.writeLock().lock();
+        try {
+            if (mClosed || mStore == null) {
+                return;
+            }
+            // No append is in flight, everything before this is written
+            snapshotEnd = mLength.get();
+            mCompactTouched = Collections.newSetFromMap(new ConcurrentHashMap<MessageId, Boolean>());
+        } finally {
+            mFileLock.writeLock().unlock();
+        }
+        // Taken after the tail position, without the lock: the store calls
+        // into the log while holding its own locks. A change that makes it
+        // into both the snapshot and the tail replays to the same state.
+        List<MessageBT> live = mStore.messages();
+        WireWriter seen = new WireWriter(mStore.seenSizeInBytes() + 16);
+        mStore.writeSeen(seen);
+        byte[] delivered = mDelivered.encode(Integer.MAX_VALUE);
+
+        // Write the live messages without holding the lock, appends carry on
+        File compacted = new File(mFile.getPath() + ".compact");
+        RandomAccessFile raf = new RandomAccessFile(compacted, "rw");
+        HashMap<MessageId, Integer> written = new HashMap<>();
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            byte[] seenRecord = record(TYPE_SEEN, seen.toByteArray());
+            byte[] deliveredRecord = record(TYPE_DELIVERED, delivered);
+            writeFully(channel, ByteBuffer.wrap(seenRecord), 0);
+            writeFully(channel, ByteBuffer.wrap(deliveredRecord), seenRecord.length);
+            long position = seenRecord.length + deliveredRecord.length;
+            WireWriter out = new WireWriter(64 * 1024);
+            for (MessageBT message : live) {
+                byte[] record = record(TYPE_PUT, encodePut(message).toByteArray());
+                written.put(message.getId(), record.length);
+                out.writeBytes(record, 0, record.length);
+                if (out.length() >= 64 * 1024) {
+                    writeFully(channel, ByteBuffer.wrap(out.toByteArray()), position);
+                    position += out.length();
+                    out = new WireWriter(64 * 1024);
+                }
+            }
+            writeFully(channel, ByteBuffer.wrap(out.toByteArray()), position);
+            position += out.length();
+
+            mFileLock.writeLock().lock();
+            try {
+                if (mClosed) {
+                    return;
+                }
+                // Carry over what was appended meanwhile, it replays on top
+                long tail = mLength.get() - snapshotEnd;
+                channel.position(position);
+                long copied = 0;
+                while (copied < tail) {
+                    copied += mChannel.transferTo(snapshotEnd + copied, tail - copied, channel);
+                }
+                channel.force(true);
+                raf.close();
+
+                mRaf.close();
+                if (!compacted.renameTo(mFile)) {
+                    openChannel();
+                    throw new IOException("Unable to replace " + mFile);
+                }
+                openChannel();
+                // A rewritten record carries the current spray count and
+                // copies, so its size can differ from the one it replaces
+                for (MessageId id : mCompactTouched) {
+                    Integer length = mLiveRecords.get(id);
+                    if (length == null) {
+                        written.remove(id);
+                    } else {
+                        written.put(id, length);
+                    }
+                }
+                mLiveRecords.clear();
+                mLiveRecords.putAll(written);
+                long liveBytes = 0;
+                for (int length : written.values()) {
+                    liveBytes += length;
+                }
+                mLiveBytes.set(liveBytes);
+                mSnapshotBytes = seenRecord.length + deliveredRecord.length;
+                LOG.info("Compacted message log to " + mLength.get() + " bytes");
+            } finally {
+                mFileLock.writeLock().unlock();
+            }
+        } finally {
+            mCompactTouched = null;
+            raf.close();
+            compacted.delete();
+        }
+    }
+
+    /**
+     * @return the current size of the log file in bytes
+     */
+    public long length() {
+        return mLength.get();
+    }
+
+    /**
+     * Flush the log to the device.
+     */
+    public void sync() throws IOException {
+        mFileLock.readLock().lock();
+        try {
+            if (!mClosed) {
+                mChannel.force(false);
+            }
+        } finally {
+            mFileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Close the file. The store keeps working in memory only.
+     */
+    public void close() throws IOException {
+        CompactThread compactThread;
+        synchronized (this) {
+            compactThread = mCompactThread;
+        }
+        if (compactThread != null) {
+            try {
+                compactThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mFileLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mChannel.force(true);
+            mRaf.close();
+        } finally {
+            mFileLock.writeLock().unlock();
+        }
+    }
+
+    private class CompactThread extends Thread {
+        CompactThread() {
+            setName("CompactThread");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Compaction failed", e);
+            } finally {
+                synchronized (MessageLog.this) {
+                    mCompactThread = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,879 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The messages buffered on this node, with secondary indexes for the
+ * forwarding decision.
+ *
+ * Besides the primary id -> message map it keeps, per beacon, the IDs of
+ * all messages aimed at that beacon and the IDs of those still in the
+ * spray phase (more than one copy left), and per destination the IDs of
+ * the messages addressed to it. Candidates for a peer are then the union
+ * of a few index lookups instead of a scan of the whole store.
+ *
+ * The store is safe to use from several threads. Messages are spread
+ * over stripes by id and every stripe has its own lock, maps, indexes,
+ * expiry wheel and seen filter, so sessions and the UI working on
+ * different messages do not wait for each other. Operations on one
+ * message are atomic; those that span the store, like
+ * {@link #messages()}, lock one stripe at a time and return snapshots.
+ *
+ * The store can be bounded by a number of messages and by an estimate of
+ * their heap footprint, both for the store as a whole. When a put goes
+ * over a limit, messages are evicted in the order given by the
+ * {@link EvictionPolicy} until the store is back within its limits. Each
+ * stripe keeps its messages in that order in a sorted set, so the victim,
+ * the first message of all stripes, costs a look at each stripe and
+ * O(log n) to remove. Evictions take one lock of their own, outside the
+ * stripe locks and only once a limit is hit. With puts running on other
+ * threads the store may be over a limit for a moment; once they return
+ * it is within both.
+ *
+ * The beacon id and destination of a stored message must not change;
+ * copies have to be updated through the store so the indexes follow.
+ *
+ * Every message has a deadline, its creation time plus its TTL, kept in
+ * its stripe's {@link TimerWheel}. {@link #expire(long)} drops the messages
+ * whose deadline passed, from the map and from every index, at a cost
+ * that does not depend on how many messages are stored. Messages that
+ * arrive already expired are not stored.
+ *
+ * Every id that enters the store is also recorded in its stripe's
+ * {@link SeenFilter} so {@link #putIfAbsent(MessageBT)} keeps rejecting
+ * a message after it has been evicted or removed.
+ *
+ * With a {@link MessageLog} attached every change is also appended to
+ * the log, see {@link MessageLog#replay(MessageStore, DeliveredSet)}.
+ */
+public class MessageStore {
+
+    // Power of two, a few times the number of threads expected to share the store
+    private static final int STRIPES = 16;
+
+    // Most recent IDs the seen filters always remember, over all stripes
+    public static final int DEFAULT_SEEN_CAPACITY = 1 << 17;
+
+    // Granularity of expiry, messages live up to this much past their TTL
+    public static final long EXPIRY_TICK_MILLIS = 1000;
+
+    /**
+     * A stored message and what the eviction policies look at.
+     */
+    public static class Entry {
+        private final MessageBT mMessage;
+        private final long mStoredAt;
+        private final int mFootprint;
+        private long mForwardedAt;
+        private double mUtility;
+        // Rank under which the entry currently sits in the eviction order,
+        // compared across stripes by eviction
+        private volatile double mRank;
+
+        Entry(MessageBT message, long storedAt) {
+            mMessage = message;
+            mStoredAt = storedAt;
+            mFootprint = footprint(message);
+        }
+
+        public MessageBT getMessage() {
+            return mMessage;
+        }
+
+        /** Logical time the message was stored, increasing with every put and forward. */
+        public long getStoredAt() {
+            return mStoredAt;
+        }
+
+        /** Logical time the message was last forwarded, 0 if never. */
+        public long getForwardedAt() {
+            return mForwardedAt;
+        }
+
+        public double getUtility() {
+            return mUtility;
+        }
+    }
+
+    // Lowest rank first, then the oldest, then by id so no two entries tie
+    private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Double.compare(a.mRank, b.mRank);
+            if (c == 0) c = Long.compare(a.mStoredAt, b.mStoredAt);
+            if (c == 0) c = a.mMessage.getId().compareTo(b.mMessage.getId());
+            return c;
+        }
+    };
+
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+
+    private volatile int mMaxMessages;
+    private volatile long mMaxBytes;
+    // Held while evicting, so two puts over a limit do not both make room
+    private final Object mEvictLock = new Object();
+
+    // Totals over all stripes
+    private final AtomicInteger mSize = new AtomicInteger();
+    private final AtomicInteger mSprayableCount = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mEvictedCount = new AtomicLong();
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+
+    // Where changes are recorded, if the store is persistent
+    private volatile MessageLog mLog;
+
+    /**
+     * An unbounded store.
+     */
+    public MessageStore() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE, EvictionPolicy.FIFO);
+    }
+
+    /**
+     * A bounded store.
+     * @param maxMessages  Most messages kept at once
+     * @param maxBytes  Most bytes kept at once, as estimated by {@link #footprint(MessageBT)}
+     * @param policy  Which messages go first when a limit is hit
+     */
+    public MessageStore(int maxMessages, long maxBytes, EvictionPolicy policy) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe(policy, now);
+        }
+        setCapacity(maxMessages, maxBytes);
+    }
+
+    void setLog(MessageLog log) {
+        mLog = log;
+    }
+
+    /**
+     * Write the state of the seen filters, for {@link #readSeen(WireReader)}.
+     */
+    void writeSeen(WireWriter out) {
+        out.writeVarInt(STRIPES);
+        for (Stripe stripe : mStripes) {
+            stripe.mmSeen.writeTo(out);
+        }
+    }
+
+    /**
+     * Take over the seen filters written by {@link #writeSeen(WireWriter)}.
+     * @return false if a store of another shape wrote them; filters not
+     *         read yet are left as they were
+     */
+    boolean readSeen(WireReader in) throws IOException {
+        if (in.readVarInt() != STRIPES) {
+            return false;
+        }
+        for (Stripe stripe : mStripes) {
+            if (!stripe.mmSeen.readFrom(in)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes used by the seen filters
+     */
+    int seenSizeInBytes() {
+        return STRIPES * mStripes[0].mmSeen.sizeInBytes();
+    }
+
+    private Stripe stripe(MessageId id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return mStripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    public int size() {
+        return mSize.get();
+    }
+
+    public boolean isEmpty() {
+        return mSize.get() == 0;
+    }
+
+    public boolean contains(MessageId id) {
+        return stripe(id).contains(id);
+    }
+
+    public MessageBT get(MessageId id) {
+        return stripe(id).get(id);
+    }
+
+    /**
+     * Change the limits. Messages over the new limits are evicted right away.
+     */
+    public void setCapacity(int maxMessages, long maxBytes) {
+        mMaxMessages = maxMessages;
+        mMaxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Change the eviction policy and re-rank every stored message.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        for (Stripe stripe : mStripes) {
+            stripe.setEvictionPolicy(policy);
+        }
+    }
+
+    /**
+     * Store a message, replacing any message with the same ID. If the store
+     * is over capacity afterwards, messages are evicted, possibly this one.
+     */
+    public void put(MessageBT message) {
+        stripe(message.getId()).put(message, true);
+        evict();
+    }
+
+    /**
+     * Store a message unless one with the same ID is already there or was
+     * seen before, or it has expired. This is how messages received from
+     * peers come in, so two sessions delivering the same message store it
+     * once, and a message that was dropped does not come back.
+     * @return true if the message was stored
+     */
+    public boolean putIfAbsent(MessageBT message) {
+        if (!stripe(message.getId()).put(message, false)) {
+            return false;
+        }
+        evict();
+        return true;
+    }
+
+    /**
+     * @return true if the message is stored or was stored at some point,
+     * with the false positive rate of the {@link SeenFilter}
+     */
+    public boolean hasSeen(MessageId id) {
+        return stripe(id).hasSeen(id);
+    }
+
+    /**
+     * @return the removed message, or null if there was none
+     */
+    public MessageBT remove(MessageId id) {
+        return stripe(id).remove(id);
+    }
+
+    private boolean overCapacity() {
+        return mSize.get() > mMaxMessages || mBytes.get() > mMaxBytes;
+    }
+
+    /**
+     * Evict the first message in eviction order of the whole store until
+     * it is within its limits.
+     */
+    private void evict() {
+        if (!overCapacity()) {
+            return;
+        }
+        synchronized (mEvictLock) {
+            while (overCapacity()) {
+                Stripe victimStripe = null;
+                Entry victim = null;
+                for (Stripe stripe : mStripes) {
+                    Entry first = stripe.first();
+                    if (first != null && (victim == null || EVICTION_ORDER.compare(first, victim) < 0)) {
+                        victimStripe = stripe;
+                        victim = first;
+                    }
+                }
+                if (victim == null) {
+                    return;
+                }
+                // Gone or moved on since the walk: walk again
+                if (victimStripe.evict(victim)) {
+                    mEvictedCount.incrementAndGet();
+                    mEvictedBytes.addAndGet(victim.mFootprint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the messages whose deadline has passed.
+     * @param now  Current time in milliseconds since the epoch
+     * @return the number of messages dropped
+     */
+    public int expire(long now) {
+        ArrayList<MessageId> due = new ArrayList<>();
+        int expired = 0;
+        for (Stripe stripe : mStripes) {
+            expired += stripe.expire(now, due);
+            due.clear();
+        }
+        mExpiredCount.addAndGet(expired);
+        return expired;
+    }
+
+    /**
+     * Set how many times a stored message was handed out.
+     * @return false if no message with that ID is stored
+     */
+    public boolean setSprayCount(MessageId id, int sprayCount) {
+        return stripe(id).setSprayCount(id, sprayCount);
+    }
+
+    /**
+     * Set the copy budget of a stored message and move it between indexes.
+     * @return false if no message with that ID is stored
+     */
+    public boolean setCopies(MessageId id, int copies) {
+        return stripe(id).setCopies(id, copies);
+    }
+
+    /**
+     * Binary Spray-and-Wait hand-off: atomically give away half of the
+     * copies of a message, keeping the larger half. Sessions claim copies
+     * this way before sending, so concurrent sessions never hand out the
+     * same copies twice.
+     * @return the number of copies to hand over, 0 if the message is
+     * gone or in its wait phase
+     */
+    public int splitCopies(MessageId id) {
+        return stripe(id).splitCopies(id);
+    }
+
+    /**
+     * Add copies to the budget of a stored message: copies claimed with
+     * {@link #splitCopies(MessageId)} that never reached the peer, or
+     * copies a peer handed over for a message already stored. A replica
+     * that hands over none leaves the budget as it is.
+     * @return false if no message with that ID is stored
+     */
+    public boolean returnCopies(MessageId id, int copies) {
+        return stripe(id).returnCopies(id, copies);
+    }
+
+    /**
+     * Note that a message was just handed to a peer: counts the spray and
+     * refreshes the forwarding time the eviction policies see.
+     * @return false if no message with that ID is stored
+     */
+    public boolean markForwarded(MessageId id) {
+        return stripe(id).markForwarded(id);
+    }
+
+    /**
+     * Set the value the routing layer gives to a message, used by
+     * {@link EvictionPolicy#LOWEST_UTILITY}.
+     * @return false if no message with that ID is stored
+     */
+    public boolean setUtility(MessageId id, double utility) {
+        return stripe(id).setUtility(id, utility);
+    }
+
+    /**
+     * @return the utility the routing layer gave a message, 0 if none or not stored
+     */
+    public double getUtility(MessageId id) {
+        return stripe(id).getUtility(id);
+    }
+
+    /**
+     * @return true if at least one message has copies to hand out
+     */
+    public boolean hasSprayable() {
+        return mSprayableCount.get() > 0;
+    }
+
+    /**
+     * @return true if a message is addressed to any of the given devices
+     */
+    public boolean hasMessagesFor(Collection<String> destinations) {
+        for (String destination : destinations) {
+            for (Stripe stripe : mStripes) {
+                if (stripe.countForDestination(destination) > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return estimated bytes held by the stored messages
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return how many messages were dropped to stay within capacity
+     */
+    public long getEvictedCount() {
+        return mEvictedCount.get();
+    }
+
+    /**
+     * @return estimated bytes of the messages dropped to stay within capacity
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    /**
+     * @return how many messages were dropped because they expired
+     */
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    /**
+     * IDs of all stored messages, as a snapshot.
+     */
+    public ArrayList<MessageId> ids() {
+        ArrayList<MessageId> ids = new ArrayList<>(size());
+        for (Stripe stripe : mStripes) {
+            stripe.collectIds(ids);
+        }
+        return ids;
+    }
+
+    /**
+     * {@link MessageId#hash64()} of all stored messages, for a {@link StoreDigest}.
+     */
+    public long[] digestKeys() {
+        ArrayList<MessageId> ids = ids();
+        long[] keys = new long[ids.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ids.get(i).hash64();
+        }
+        return keys;
+    }
+
+    /**
+     * All stored messages, as a snapshot.
+     */
+    public ArrayList<MessageBT> messages() {
+        ArrayList<MessageBT> messages = new ArrayList<>(size());
+        for (Stripe stripe : mStripes) {
+            stripe.collectMessages(messages);
+        }
+        return messages;
+    }
+
+    /**
+     * IDs of the messages aimed at a beacon, or an empty set.
+     */
+    public Set<MessageId> idsForBeacon(String beaconId) {
+        HashSet<MessageId> ids = new HashSet<>();
+        for (Stripe stripe : mStripes) {
+            stripe.collectIdsForBeacon(beaconId, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Messages in their spray phase aimed at any of the given beacons, as a snapshot.
+     * @param beacons  Beacons reported by the peer; duplicates are harmless
+     */
+    public ArrayList<MessageBT> sprayableForBeacons(Collection<String> beacons) {
+        ArrayList<MessageBT> candidates = new ArrayList<>();
+        if (!hasSprayable()) {
+            return candidates;
+        }
+        LinkedHashSet<String> unique = new LinkedHashSet<>(beacons);
+        for (Stripe stripe : mStripes) {
+            stripe.collectSprayable(unique, candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * All messages in their spray phase, as a snapshot.
+     */
+    public ArrayList<MessageBT> sprayable() {
+        ArrayList<MessageBT> candidates = new ArrayList<>();
+        if (!hasSprayable()) {
+            return candidates;
+        }
+        for (Stripe stripe : mStripes) {
+            stripe.collectSprayable(candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Messages addressed to a device, in any phase, as a snapshot.
+     */
+    public ArrayList<MessageBT> forDestination(String destination) {
+        ArrayList<MessageBT> messages = new ArrayList<>();
+        for (Stripe stripe : mStripes) {
+            stripe.collectForDestination(destination, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Rough heap cost of a message: the object, its strings and the
+     * index entries pointing at it.
+     */
+    public static int footprint(MessageBT message) {
+        return 160 + 2 * (length(message.getText())
+                + length(message.getDestination()) + length(message.getBeaconId()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static boolean isSprayable(MessageBT message) {
+        return message.getCopies() > 1;
+    }
+
+    /**
+     * One lock's worth of the store. All methods are synchronized on the
+     * stripe and only ever touch messages that hash to it.
+     */
+    private class Stripe {
+        private final HashMap<MessageId, Entry> mmMessages = new HashMap<>();
+
+        // Every id that hashed here, and the deadlines of the stored messages
+        private final SeenFilter mmSeen = new SeenFilter(DEFAULT_SEEN_CAPACITY / STRIPES);
+        private final TimerWheel<MessageId> mmExpiry;
+
+        // beaconId -> IDs of every stored message for that beacon
+        private final HashMap<String, HashSet<MessageId>> mmByBeacon = new HashMap<>();
+
+        // beaconId -> IDs of the messages for that beacon that may still be sprayed
+        private final HashMap<String, HashSet<MessageId>> mmSprayableByBeacon = new HashMap<>();
+
+        // destination -> IDs of the messages addressed to it
+        private final HashMap<String, HashSet<MessageId>> mmByDestination = new HashMap<>();
+
+        // Capacity and eviction
+        private final TreeSet<Entry> mmEvictionOrder = new TreeSet<>(EVICTION_ORDER);
+        private EvictionPolicy mmPolicy;
+
+        Stripe(EvictionPolicy policy, long now) {
+            mmPolicy = policy;
+            mmExpiry = new TimerWheel<>(EXPIRY_TICK_MILLIS, now);
+        }
+
+        synchronized boolean contains(MessageId id) {
+            return mmMessages.containsKey(id);
+        }
+
+        synchronized boolean hasSeen(MessageId id) {
+            return mmMessages.containsKey(id) || mmSeen.mightContain(id);
+        }
+
+        synchronized MessageBT get(MessageId id) {
+            Entry entry = mmMessages.get(id);
+            return entry == null ? null : entry.mMessage;
+        }
+
+        synchronized Entry first() {
+            return mmEvictionOrder.isEmpty() ? null : mmEvictionOrder.first();
+        }
+
+        /**
+         * Remove an entry if it is still stored and first in eviction order.
+         */
+        synchronized boolean evict(Entry victim) {
+            if (mmEvictionOrder.isEmpty() || mmEvictionOrder.first() != victim) {
+                return false;
+            }
+            remove(victim.mMessage.getId());
+            return true;
+        }
+
+        synchronized void setEvictionPolicy(EvictionPolicy policy) {
+            mmPolicy = policy;
+            mmEvictionOrder.clear();
+            for (Entry entry : mmMessages.values()) {
+                entry.mRank = policy.rank(entry);
+                mmEvictionOrder.add(entry);
+            }
+        }
+
+        synchronized boolean put(MessageBT message, boolean replace) {
+            Entry previous = mmMessages.get(message.getId());
+            if (previous != null && !replace) {
+                return false;
+            }
+            if (mmSeen.add(message.getId()) && !replace) {
+                return false;
+            }
+            if (!replace && message.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            Entry entry = new Entry(message, mClock.incrementAndGet());
+            mmMessages.put(message.getId(), entry);
+            if (previous != null) {
+                unindex(previous);
+            }
+            index(entry);
+            MessageLog log = mLog;
+            if (log != null) {
+                log.appendPut(message);
+            }
+            return true;
+        }
+
+        synchronized MessageBT remove(MessageId id) {
+            Entry entry = mmMessages.remove(id);
+            if (entry == null) {
+                return null;
+            }
+            unindex(entry);
+            MessageLog log = mLog;
+            if (log != null) {
+                log.appendRemove(id);
+            }
+            return entry.mMessage;
+        }
+
+        synchronized int expire(long now, ArrayList<MessageId> due) {
+            mmExpiry.advance(now, due);
+            int expired = 0;
+            for (MessageId id : due) {
+                // Put again with a new deadline since the wheel let go of it: keep it
+                Entry entry = mmMessages.get(id);
+                if (entry != null && entry.mMessage.isExpired(now)) {
+                    remove(id);
+                    expired++;
+                }
+            }
+            return expired;
+        }
+
+        synchronized boolean setSprayCount(MessageId id, int sprayCount) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.mMessage.getSprayCount() != sprayCount) {
+                updateSprayCount(entry, sprayCount);
+            }
+            return true;
+        }
+
+        synchronized boolean setCopies(MessageId id, int copies) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.mMessage.getCopies() != copies) {
+                updateCopies(entry, copies);
+            }
+            return true;
+        }
+
+        synchronized int splitCopies(MessageId id) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null || !isSprayable(entry.mMessage)) {
+                return 0;
+            }
+            int copies = entry.mMessage.getCopies();
+            updateCopies(entry, copies - copies / 2);
+            return copies / 2;
+        }
+
+        synchronized boolean returnCopies(MessageId id, int copies) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null) {
+                return false;
+            }
+            if (copies > 0) {
+                updateCopies(entry, entry.mMessage.getCopies() + copies);
+            }
+            return true;
+        }
+
+        synchronized double getUtility(MessageId id) {
+            Entry entry = mmMessages.get(id);
+            return entry == null ? 0 : entry.mUtility;
+        }
+
+        synchronized boolean markForwarded(MessageId id) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null) {
+                return false;
+            }
+            entry.mForwardedAt = mClock.incrementAndGet();
+            updateSprayCount(entry, entry.mMessage.getSprayCount() + 1);
+            return true;
+        }
+
+        synchronized boolean setUtility(MessageId id, double utility) {
+            Entry entry = mmMessages.get(id);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.mUtility == utility) {
+                // Refreshed after every contact, mostly unchanged
+                return true;
+            }
+            mmEvictionOrder.remove(entry);
+            entry.mUtility = utility;
+            rerank(entry);
+            return true;
+        }
+
+        synchronized void collectIds(Collection<MessageId> ids) {
+            ids.addAll(mmMessages.keySet());
+        }
+
+        synchronized void collectMessages(Collection<MessageBT> messages) {
+            for (Entry entry : mmMessages.values()) {
+                messages.add(entry.mMessage);
+            }
+        }
+
+        synchronized void collectIdsForBeacon(String beaconId, Collection<MessageId> ids) {
+            HashSet<MessageId> beaconIds = mmByBeacon.get(beaconId);
+            if (beaconIds != null) {
+                ids.addAll(beaconIds);
+            }
+        }
+
+        synchronized int countForDestination(String destination) {
+            HashSet<MessageId> ids = mmByDestination.get(addressKey(destination));
+            return ids == null ? 0 : ids.size();
+        }
+
+        synchronized void collectForDestination(String destination, Collection<MessageBT> messages) {
+            HashSet<MessageId> ids = mmByDestination.get(addressKey(destination));
+            if (ids != null) {
+                for (MessageId id : ids) {
+                    messages.add(mmMessages.get(id).mMessage);
+                }
+            }
+        }
+
+        synchronized void collectSprayable(Collection<String> beacons, Collection<MessageBT> candidates) {
+            if (mmSprayableByBeacon.isEmpty()) {
+                return;
+            }
+            for (String beacon : beacons) {
+                HashSet<MessageId> ids = mmSprayableByBeacon.get(beacon);
+                if (ids == null) {
+                    continue;
+                }
+                for (MessageId id : ids) {
+                    candidates.add(mmMessages.get(id).mMessage);
+                }
+            }
+        }
+
+        synchronized void collectSprayable(Collection<MessageBT> candidates) {
+            for (HashSet<MessageId> ids : mmSprayableByBeacon.values()) {
+                for (MessageId id : ids) {
+                    candidates.add(mmMessages.get(id).mMessage);
+                }
+            }
+        }
+
+        private void updateSprayCount(Entry entry, int sprayCount) {
+            mmEvictionOrder.remove(entry);
+            entry.mMessage.setSprayCount(sprayCount);
+            rerank(entry);
+            MessageLog log = mLog;
+            if (log != null) {
+                // A few bytes instead of the whole message again
+                log.appendSprayCount(entry.mMessage.getId(), sprayCount);
+            }
+        }
+
+        private void updateCopies(Entry entry, int copies) {
+            MessageBT message = entry.mMessage;
+            boolean wasSprayable = isSprayable(message);
+            message.setCopies(copies);
+            MessageLog log = mLog;
+            if (log != null) {
+                log.appendCopies(message.getId(), copies);
+            }
+            boolean sprayable = isSprayable(message);
+            if (wasSprayable != sprayable) {
+                if (sprayable) {
+                    add(mmSprayableByBeacon, message.getBeaconId(), message.getId());
+                    mSprayableCount.incrementAndGet();
+                } else {
+                    delete(mmSprayableByBeacon, message.getBeaconId(), message.getId());
+                    mSprayableCount.decrementAndGet();
+                }
+            }
+        }
+
+        private void rerank(Entry entry) {
+            entry.mRank = mmPolicy.rank(entry);
+            mmEvictionOrder.add(entry);
+        }
+
+        private void index(Entry entry) {
+            MessageBT message = entry.mMessage;
+            add(mmByBeacon, message.getBeaconId(), message.getId());
+            add(mmByDestination, addressKey(message.getDestination()), message.getId());
+            if (isSprayable(message)) {
+                add(mmSprayableByBeacon, message.getBeaconId(), message.getId());
+                mSprayableCount.incrementAndGet();
+            }
+            rerank(entry);
+            mmExpiry.schedule(message.getId(), message.getExpiresAt());
+            mBytes.addAndGet(entry.mFootprint);
+            mSize.incrementAndGet();
+        }
+
+        private void unindex(Entry entry) {
+            MessageBT message = entry.mMessage;
+            delete(mmByBeacon, message.getBeaconId(), message.getId());
+            delete(mmByDestination, addressKey(message.getDestination()), message.getId());
+            if (isSprayable(message)) {
+                delete(mmSprayableByBeacon, message.getBeaconId(), message.getId());
+                mSprayableCount.decrementAndGet();
+            }
+            mmEvictionOrder.remove(entry);
+            mmExpiry.cancel(message.getId());
+            mBytes.addAndGet(-entry.mFootprint);
+            mSize.decrementAndGet();
+        }
+    }
+
+    /**
+     * Bluetooth addresses are hex and may be typed in either case; peers
+     * report them upper case.
+     * @return the address as the destination index keys it
+     */
+    static String addressKey(String address) {
+        return address == null ? null : address.toUpperCase(Locale.US);
+    }
+
+    private static void add(HashMap<String, HashSet<MessageId>> index, String key, MessageId id) {
+        HashSet<MessageId> ids = index.get(key);
+        if (ids == null) {
+            ids = new HashSet<>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static void delete(HashMap<String, HashSet<MessageId>> index, String key, MessageId id) {
+        HashSet<MessageId> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Where a node tends to be: for every beacon, how often the node has
+ * been near it, per hour of the day, with old visits fading out.
+ *
+ * Visit weights decay exponentially with {@link #HALF_LIFE_MILLIS}; the
+ * decay is applied lazily when a beacon is touched, so recording a visit
+ * or reading a score costs a few multiplications whatever the age of the
+ * profile.
+ *
+ * The closeness of a node to a beacon at a given time is the decayed
+ * number of visits in that hour of the day and the hours next to it,
+ * plus a fraction of its visits at any time of the day. A node that is
+ * at a place every morning is close to it in the morning, a node that
+ * passes by at random hours is somewhat close all day.
+ *
+ * At most {@link #DEFAULT_MAX_BEACONS} beacons are kept; when a new one
+ * comes in, the beacon with the fewest decayed visits is forgotten.
+ */
+public class MobilityProfile {
+
+    public static final long HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_BEACONS = 256;
+
+    private static final int SLOTS = 24;
+    private static final long SLOT_MILLIS = 60 * 60 * 1000;
+    private static final double ALL_DAY_WEIGHT = 0.1;
+    private static final double DECAY_PER_MILLI = Math.log(2) / HALF_LIFE_MILLIS;
+
+    // Scores are exchanged in thousandths of a visit
+    private static final double WIRE_SCALE = 1000;
+
+    private static class Visits {
+        final double[] slots = new double[SLOTS];
+        double total;
+        long updatedAt;
+
+        void decayTo(long time) {
+            if (time <= updatedAt) {
+                return;
+            }
+            double factor = Math.exp(-DECAY_PER_MILLI * (time - updatedAt));
+            for (int i = 0; i < SLOTS; i++) {
+                slots[i] *= factor;
+            }
+            total *= factor;
+            updatedAt = time;
+        }
+    }
+
+    private final HashMap<String, Visits> mVisits = new HashMap<>();
+    private final TimeZone mTimeZone;
+    private final int mMaxBeacons;
+
+    public MobilityProfile() {
+        this(TimeZone.getDefault());
+    }
+
+    /**
+     * @param timeZone  Zone in which hours of the day are counted
+     */
+    public MobilityProfile(TimeZone timeZone) {
+        this(timeZone, DEFAULT_MAX_BEACONS);
+    }
+
+    /**
+     * @param timeZone  Zone in which hours of the day are counted
+     * @param maxBeacons  Number of beacons remembered
+     */
+    public MobilityProfile(TimeZone timeZone, int maxBeacons) {
+        mTimeZone = timeZone;
+        mMaxBeacons = maxBeacons;
+    }
+
+    /**
+     * Record that the node was near a beacon.
+     * @param beacon  Beacon address
+     * @param time  When, in milliseconds since the epoch
+     */
+    public synchronized void recordVisit(String beacon, long time) {
+        Visits visits = mVisits.get(beacon);
+        if (visits == null) {
+            if (mVisits.size() >= mMaxBeacons) {
+                forgetWeakest(time);
+            }
+            visits = new Visits();
+            visits.updatedAt = time;
+            mVisits.put(beacon, visits);
+        }
+        visits.decayTo(time);
+        visits.slots[slot(time)] += 1;
+        visits.total += 1;
+    }
+
+    private void forgetWeakest(long time) {
+        String weakest = null;
+        double weakestTotal = Double.MAX_VALUE;
+        for (Map.Entry<String, Visits> entry : mVisits.entrySet()) {
+            Visits visits = entry.getValue();
+            double total = visits.total * Math.exp(-DECAY_PER_MILLI * Math.max(0, time - visits.updatedAt));
+            if (total < weakestTotal) {
+                weakest = entry.getKey();
+                weakestTotal = total;
+            }
+        }
+        mVisits.remove(weakest);
+    }
+
+    /**
+     * @return how close the node is to a beacon at the given time, 0 if it never went there
+     */
+    public synchronized double closeness(String beacon, long time) {
+        Visits visits = mVisits.get(beacon);
+        if (visits == null) {
+            return 0;
+        }
+        return closeness(visits, time);
+    }
+
+    /**
+     * Closeness to every known beacon at the given time.
+     */
+    public synchronized HashMap<String, Double> closeness(long time) {
+        HashMap<String, Double> scores = new HashMap<>(mVisits.size() * 2);
+        for (Map.Entry<String, Visits> entry : mVisits.entrySet()) {
+            scores.put(entry.getKey(), closeness(entry.getValue(), time));
+        }
+        return scores;
+    }
+
+    private double closeness(Visits visits, long time) {
+        // Decay on a copy of the factor, reads must not move updatedAt backwards
+        double factor = time > visits.updatedAt
+                ? Math.exp(-DECAY_PER_MILLI * (time - visits.updatedAt)) : 1;
+        int slot = slot(time);
+        double nearby = visits.slots[slot]
+                + visits.slots[(slot + 1) % SLOTS]
+                + visits.slots[(slot + SLOTS - 1) % SLOTS];
+        return factor * (nearby + ALL_DAY_WEIGHT * visits.total);
+    }
+
+    private int slot(long time) {
+        long local = time + mTimeZone.getOffset(time);
+        return (int) (((local / SLOT_MILLIS) % SLOTS + SLOTS) % SLOTS);
+    }
+
+    /**
+     * Encode the closeness of the node to its best beacons at the given
+     * time, as exchanged in a PROFILE frame.
+     * @param maxBeacons  Only this many beacons, the closest ones, are sent
+     */
+    public byte[] encode(long time, int maxBeacons) {
+        ArrayList<Map.Entry<String, Double>> scores = new ArrayList<>(closeness(time).entrySet());
+        Collections.sort(scores, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+        int count = Math.min(maxBeacons, scores.size());
+        WireWriter out = new WireWriter(8 + count * 10);
+        out.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            String beacon = scores.get(i).getKey();
+            boolean mac = WireWriter.isMac(beacon);
+            out.writeByte(mac ? 1 : 0);
+            if (mac) {
+                out.writeMac(beacon);
+            } else {
+                out.writeString(beacon);
+            }
+            out.writeVarLong(Math.round(scores.get(i).getValue() * WIRE_SCALE));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the payload of a PROFILE frame.
+     * @return beacon -> closeness of the peer
+     */
+    public static HashMap<String, Double> decode(byte[] payload) throws IOException {
+        WireReader in = new WireReader(payload);
+        int count = in.readVarInt();
+        if (count > in.remaining()) {
+            throw new IOException("Profile count " + count + " exceeds payload");
+        }
+        HashMap<String, Double> scores = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String beacon = in.readByte() != 0 ? in.readMac() : in.readString();
+            scores.put(beacon, in.readVarLong() / WIRE_SCALE);
+        }
+        return scores;
+    }
+}
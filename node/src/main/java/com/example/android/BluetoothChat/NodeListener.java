@@ -0,0 +1,39 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Callbacks for what happens on a {@link SpotNetNode}. They are invoked on
+ * the node's session threads, so implementations must not block and have
+ * to hand work over to their own thread if they touch UI state.
+ */
+public interface NodeListener {
+
+    /**
+     * The overall connection state changed.
+     * @param state  One of the SpotNetNode.STATE_* constants
+     */
+    void onStateChanged(int state);
+
+    void onPeerConnected(Peer peer);
+
+    void onConnectionFailed(String address);
+
+    void onConnectionLost(String address);
+
+    /**
+     * A frame arrived from a peer.
+     * @param type  One of the Frame.TYPE_* constants
+     */
+    void onFrameReceived(Peer peer, int type, byte[] payload);
+
+    /**
+     * A frame was written to a peer.
+     * @param type  One of the Frame.TYPE_* constants
+     */
+    void onFrameSent(Peer peer, int type, byte[] payload);
+
+    /**
+     * A message addressed to this node arrived, from a peer or from this
+     * node itself. Called once per message.
+     */
+    void onMessageDelivered(MessageBT message);
+}
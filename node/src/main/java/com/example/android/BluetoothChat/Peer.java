@@ -0,0 +1,17 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Identity of a remote node as seen by a {@link Transport}.
+ */
+public interface Peer {
+
+    /**
+     * Stable address of the node, a Bluetooth MAC on RFCOMM.
+     */
+    String getAddress();
+
+    /**
+     * Human readable name, may be null.
+     */
+    String getName();
+}
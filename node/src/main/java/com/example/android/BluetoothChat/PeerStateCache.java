@@ -0,0 +1,253 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What was last exchanged with each peer, so that handshakes with the
+ * same people day after day carry only what changed since.
+ *
+ * Every beacon list and store digest this node puts in a handshake gets
+ * a version, and the last {@link #SNAPSHOTS} distinct ones are kept so
+ * a delta can be computed against any of them. Per peer the cache holds
+ * the versions of ours the peer has, and the peer's own beacon list and
+ * digest as last received, with the versions it gave them. A version of
+ * 0 means nothing is held and a full copy has to go.
+ *
+ * The cache keeps the {@link #DEFAULT_CAPACITY} peers used most
+ * recently; a peer that falls out simply gets a full handshake again.
+ */
+public class PeerStateCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    // Versions of our own beacon list and digest a delta can start from
+    public static final int SNAPSHOTS = 8;
+
+    /**
+     * What was exchanged with one peer. Only the session with that peer
+     * uses it, so it needs no locking of its own.
+     */
+    public static class PeerState {
+        // Versions of our beacons and digest the peer holds, and how many
+        // deliveries we had learned when we last told it
+        private long mBeaconsSent;
+        private long mDigestSent;
+        private long mDeliveredSent;
+        // IDs in the Bloom filter the peer holds our digest as, 0 for an
+        // exact list, and the deltas and IDs added and removed sent onto
+        // it since it was full. Deltas cannot remove from a filter.
+        private int mDigestBloomIds;
+        private int mDigestDeltas;
+        private int mDigestAdded;
+        private int mDigestRemoved;
+
+        // The peer's beacons and digest as last received
+        private long mBeaconsVersion;
+        private List<String> mBeacons;
+        private long mDigestVersion;
+        private StoreDigest mDigest;
+
+        public long getBeaconsSent() {
+            return mBeaconsSent;
+        }
+
+        void setBeaconsSent(long version) {
+            mBeaconsSent = version;
+        }
+
+        public long getDigestSent() {
+            return mDigestSent;
+        }
+
+        void setDigestSent(long version) {
+            mDigestSent = version;
+        }
+
+        public long getDeliveredSent() {
+            return mDeliveredSent;
+        }
+
+        void setDeliveredSent(long added) {
+            mDeliveredSent = added;
+        }
+
+        /**
+         * Our full digest of the given IDs went out.
+         */
+        void setDigestFull(int ids) {
+            mDigestBloomIds = ids > StoreDigest.BLOOM_THRESHOLD ? ids : 0;
+            mDigestDeltas = 0;
+            mDigestAdded = 0;
+            mDigestRemoved = 0;
+        }
+
+        /**
+         * @return false if the peer's digest is a Bloom filter that would
+         *         be too stale with the delta, see {@link StoreDigest#bloomHolds}
+         */
+        boolean digestTakes(StoreDigest.Delta delta) {
+            return mDigestBloomIds == 0 || StoreDigest.bloomHolds(mDigestBloomIds, mDigestDeltas + 1,
+                    mDigestAdded + delta.getAddedCount(), mDigestRemoved + delta.getRemovedCount());
+        }
+
+        /**
+         * A delta onto our digest went out.
+         */
+        void addDigestDelta(StoreDigest.Delta delta) {
+            mDigestDeltas++;
+            mDigestAdded += delta.getAddedCount();
+            mDigestRemoved += delta.getRemovedCount();
+        }
+
+        public long getBeaconsVersion() {
+            return mBeaconsVersion;
+        }
+
+        /** The peer's beacons at {@link #getBeaconsVersion()}, or null. */
+        public List<String> getBeacons() {
+            return mBeacons;
+        }
+
+        void setBeacons(long version, List<String> beacons) {
+            mBeaconsVersion = beacons == null ? 0 : version;
+            mBeacons = beacons;
+        }
+
+        public long getDigestVersion() {
+            return mDigestVersion;
+        }
+
+        /** The peer's digest at {@link #getDigestVersion()}, or null. */
+        public StoreDigest getDigest() {
+            return mDigest;
+        }
+
+        void setDigest(long version, StoreDigest digest) {
+            mDigestVersion = digest == null ? 0 : version;
+            mDigest = digest;
+        }
+    }
+
+    /**
+     * One version of something this node sent.
+     */
+    private static class Snapshot<T> {
+        final long version;
+        final T value;
+
+        Snapshot(long version, T value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    private final int mCapacity;
+    private final LinkedHashMap<String, PeerState> mPeers;
+
+    // Versions start at the creation time, so a restarted node never
+    // reuses a version a peer still holds
+    private long mNextVersion = System.currentTimeMillis();
+    private final ArrayDeque<Snapshot<List<String>>> mBeacons = new ArrayDeque<>();
+    private final ArrayDeque<Snapshot<long[]>> mDigests = new ArrayDeque<>();
+
+    public PeerStateCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity  Number of peers remembered
+     */
+    public PeerStateCache(int capacity) {
+        mCapacity = capacity;
+        mPeers = new LinkedHashMap<String, PeerState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PeerState> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * @return the state kept for a peer, created empty if there is none
+     */
+    public synchronized PeerState get(String peer) {
+        PeerState state = mPeers.get(peer);
+        if (state == null) {
+            state = new PeerState();
+            mPeers.put(peer, state);
+        }
+        return state;
+    }
+
+    public synchronized int size() {
+        return mPeers.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @param beacons  The beacon list about to be sent
+     * @return its version, the latest one if nothing changed
+     */
+    public synchronized long beaconsVersion(List<String> beacons) {
+        Snapshot<List<String>> latest = mBeacons.peekLast();
+        if (latest != null && latest.value.equals(beacons)) {
+            return latest.version;
+        }
+        return publish(mBeacons, beacons);
+    }
+
+    /**
+     * @return the beacon list sent as the given version, or null if it is
+     *         no longer kept
+     */
+    public synchronized List<String> beaconsAt(long version) {
+        return find(mBeacons, version);
+    }
+
+    /**
+     * @param keys  The digest keys about to be sent, sorted
+     * @return their version, the latest one if nothing changed
+     */
+    public synchronized long digestVersion(long[] keys) {
+        Snapshot<long[]> latest = mDigests.peekLast();
+        if (latest != null && Arrays.equals(latest.value, keys)) {
+            return latest.version;
+        }
+        return publish(mDigests, keys);
+    }
+
+    /**
+     * @return the sorted digest keys sent as the given version, or null if
+     *         they are no longer kept
+     */
+    public synchronized long[] digestAt(long version) {
+        return find(mDigests, version);
+    }
+
+    private <T> long publish(ArrayDeque<Snapshot<T>> snapshots, T value) {
+        if (snapshots.size() >= SNAPSHOTS) {
+            snapshots.pollFirst();
+        }
+        long version = ++mNextVersion;
+        snapshots.addLast(new Snapshot<>(version, value));
+        return version;
+    }
+
+    private static <T> T find(ArrayDeque<Snapshot<T>> snapshots, long version) {
+        Iterator<Snapshot<T>> it = snapshots.descendingIterator();
+        while (it.hasNext()) {
+            Snapshot<T> snapshot = it.next();
+            if (snapshot.version == version) {
+                return snapshot.value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process {@link Transport}: nodes sharing a {@link Network} talk through
+ * bounded in-memory pipes. Meant for running many nodes in one JVM.
+ *
+ * java.io.PipedInputStream is not used because it fails as soon as the
+ * thread that last wrote to it has ended, which is exactly what a
+ * connect thread does.
+ */
+public class PipeTransport implements Transport {
+
+    // Bytes buffered per direction before a writer blocks
+    public static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * Registry of listening nodes, shared by every PipeTransport that
+     * should be able to reach the others.
+     */
+    public static class Network {
+        private final HashMap<String, PipeListener> mListeners = new HashMap<>();
+        private final int mPipeCapacity;
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        /**
+         * @param pipeCapacity  Bytes buffered per direction of a link; a
+         *                      few KB behaves like the socket buffers of
+         *                      a slow radio link
+         */
+        public Network(int pipeCapacity) {
+            mPipeCapacity = pipeCapacity;
+        }
+
+        synchronized void register(String address, PipeListener listener) throws IOException {
+            if (mListeners.containsKey(address)) {
+                throw new IOException("Address already in use: " + address);
+            }
+            mListeners.put(address, listener);
+        }
+
+        synchronized void unregister(String address, PipeListener listener) {
+            if (mListeners.get(address) == listener) {
+                mListeners.remove(address);
+            }
+        }
+
+        synchronized PipeListener lookup(String address) {
+            return mListeners.get(address);
+        }
+    }
+
+    private final Network mNetwork;
+    private final String mAddress;
+
+    public PipeTransport(Network network, String address) {
+        mNetwork = network;
+        mAddress = address;
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public LinkListener listen() throws IOException {
+        PipeListener listener = new PipeListener();
+        mNetwork.register(mAddress, listener);
+        return listener;
+    }
+
+    @Override
+    public Link createLink(String address) {
+        return new PipeLink(address);
+    }
+
+    private class PipeListener implements LinkListener {
+        private final LinkedBlockingQueue<Link> mmPending = new LinkedBlockingQueue<>();
+        private volatile boolean mmClosed;
+
+        @Override
+        public Link accept() throws IOException {
+            try {
+                Link link = mmPending.take();
+                if (mmClosed) {
+                    link.close();
+                    throw new IOException("Listener closed");
+                }
+                return link;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("accept() interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            mmClosed = true;
+            mNetwork.unregister(mAddress, this);
+            // Wake up a thread blocked in accept()
+            mmPending.offer(new PipeLink(mAddress));
+        }
+    }
+
+    private class PipeLink implements Link, Peer {
+        private final String mmAddress;
+        private Pipe mmIn;
+        private Pipe mmOut;
+        private volatile boolean mmClosed;
+
+        // Outgoing, unconnected
+        PipeLink(String address) {
+            mmAddress = address;
+        }
+
+        // Accepted side of a connection
+        PipeLink(String address, Pipe in, Pipe out) {
+            mmAddress = address;
+            mmIn = in;
+            mmOut = out;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (mmIn != null) {
+                return;
+            }
+            if (mmClosed) {
+                throw new IOException("Link closed");
+            }
+            PipeListener listener = mNetwork.lookup(mmAddress);
+            if (listener == null) {
+                throw new IOException("Nobody listening on " + mmAddress);
+            }
+            Pipe toRemote = new Pipe(mNetwork.mPipeCapacity);
+            Pipe fromRemote = new Pipe(mNetwork.mPipeCapacity);
+            mmIn = fromRemote;
+            mmOut = toRemote;
+            listener.mmPending.offer(new PipeLink(mAddress, toRemote, fromRemote));
+        }
+
+        @Override
+        public Peer getPeer() {
+            return this;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public String getName() {
+            return mmAddress;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mmIn == null) throw new IOException("Not connected");
+            return mmIn.input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mmOut == null) throw new IOException("Not connected");
+            return mmOut.output;
+        }
+
+        @Override
+        public synchronized void close() {
+            mmClosed = true;
+            if (mmIn != null) mmIn.close();
+            if (mmOut != null) mmOut.close();
+        }
+    }
+
+    /**
+     * Bounded single-direction byte queue with blocking streams on both
+     * ends. Closing it from either end fails the other end.
+     */
+    static class Pipe {
+        private final byte[] mmBuffer;
+        private int mmHead;
+        private int mmCount;
+        private boolean mmClosed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            mmBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mmCount == 0) {
+                if (mmClosed) {
+                    return -1;
+                }
+                awaitChange();
+            }
+            int n = Math.min(len, mmCount);
+            int first = Math.min(n, mmBuffer.length - mmHead);
+            System.arraycopy(mmBuffer, mmHead, b, off, first);
+            System.arraycopy(mmBuffer, 0, b, off + first, n - first);
+            mmHead = (mmHead + n) % mmBuffer.length;
+            mmCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized int available() {
+            return mmCount;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mmCount == mmBuffer.length && !mmClosed) {
+                    awaitChange();
+                }
+                if (mmClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                int tail = (mmHead + mmCount) % mmBuffer.length;
+                int n = Math.min(len, Math.min(mmBuffer.length - mmCount, mmBuffer.length - tail));
+                System.arraycopy(b, off, mmBuffer, tail, n);
+                mmCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mmClosed = true;
+            notifyAll();
+        }
+
+        private void awaitChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Pipe wait interrupted");
+            }
+        }
+    }
+}
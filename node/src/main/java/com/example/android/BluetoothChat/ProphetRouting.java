@@ -0,0 +1,235 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PRoPHET: every node keeps, for the devices it knows of, the
+ * predictability of delivering to them, P in [0, 1].
+ *
+ * Meeting a peer raises P(peer) towards 1 by {@link #P_INIT}. All values
+ * age by {@link #GAMMA} per {@link #AGING_UNIT_MILLIS} without contact.
+ * Peers exchange their tables in a ROUTING frame, and from the peer's
+ * table P(c) becomes at least P(peer) * P_peer(c) * {@link #BETA}. A copy
+ * of a message goes to a peer whose P for the destination is higher than
+ * ours; the message stays here too, its copy budget is not touched.
+ *
+ * The table keeps at most {@link #MAX_ENTRIES} devices and the
+ * {@link #STATE_ENTRIES} strongest are sent.
+ */
+public class ProphetRouting implements RoutingStrategy {
+
+    public static final String NAME = "prophet";
+
+    public static final double P_INIT = 0.75;
+    public static final double BETA = 0.25;
+    public static final double GAMMA = 0.98;
+    public static final long AGING_UNIT_MILLIS = 60 * 60 * 1000;
+
+    public static final int MAX_ENTRIES = 1024;
+    public static final int STATE_ENTRIES = 256;
+
+    // Below this a device is forgotten
+    private static final double P_MIN = 0.001;
+    // Predictabilities are exchanged in ten-thousandths
+    private static final double WIRE_SCALE = 10000;
+    // Rough heap cost of a table entry: map entry, key string and boxed value
+    private static final int ENTRY_BYTES = 120;
+
+    private final HashMap<String, Double> mPredictability = new HashMap<>();
+    private long mAgedAt = -1;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized void contactUp(Contact contact) {
+        age(contact.getStartedAt());
+        double p = get(contact.getPeerAddress());
+        put(contact.getPeerAddress(), p + (1 - p) * P_INIT);
+    }
+
+    @Override
+    public byte[] encodeState(Contact contact) {
+        ArrayList<Map.Entry<String, Double>> entries;
+        synchronized (this) {
+            age(contact.getStartedAt());
+            entries = new ArrayList<>(mPredictability.entrySet().size());
+            for (Map.Entry<String, Double> entry : mPredictability.entrySet()) {
+                entries.add(new AbstractMap.SimpleEntry<>(entry));
+            }
+        }
+        if (entries.size() > STATE_ENTRIES) {
+            Collections.sort(entries, new Comparator<Map.Entry<String, Double>>() {
+                @Override
+                public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                    return Double.compare(b.getValue(), a.getValue());
+                }
+            });
+        }
+        int count = Math.min(STATE_ENTRIES, entries.size());
+        WireWriter out = new WireWriter(8 + count * 10);
+        out.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            String address = entries.get(i).getKey();
+            boolean mac = WireWriter.isMac(address);
+            out.writeByte(mac ? 1 : 0);
+            if (mac) {
+                out.writeMac(address);
+            } else {
+                out.writeString(address);
+            }
+            out.writeVarInt((int) Math.round(entries.get(i).getValue() * WIRE_SCALE));
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void peerState(Contact contact, byte[] payload) throws IOException {
+        WireReader in = new WireReader(payload);
+        int count = in.readVarInt();
+        if (count > in.remaining()) {
+            throw new IOException("Predictability count " + count + " exceeds payload");
+        }
+        HashMap<String, Double> peer = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String address = in.readByte() != 0 ? in.readMac() : in.readString();
+            peer.put(address, Math.min(1, in.readVarInt() / WIRE_SCALE));
+        }
+        contact.setStrategyState(peer);
+
+        // Transitivity: what the peer reaches well, we reach through it
+        synchronized (this) {
+            double viaPeer = get(contact.getPeerAddress()) * BETA;
+            for (Map.Entry<String, Double> entry : peer.entrySet()) {
+                String address = entry.getKey();
+                if (address.equals(contact.getLocalAddress()) || address.equals(contact.getPeerAddress())) {
+                    continue;
+                }
+                double transitive = viaPeer * entry.getValue();
+                if (transitive > get(address)) {
+                    put(address, transitive);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<MessageBT> select(Contact contact) {
+        ArrayList<MessageBT> selected = new ArrayList<>();
+        HashSet<MessageId> chosen = new HashSet<>();
+        contact.selectDirect(selected, chosen);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Double> peer = (Map<String, Double>) contact.getStrategyState();
+        if (peer == null) {
+            return selected;
+        }
+        // Decide per destination, then look the messages up by destination
+        ArrayList<String> better = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Double> entry : peer.entrySet()) {
+                if (entry.getValue() > get(entry.getKey())) {
+                    better.add(entry.getKey());
+                }
+            }
+        }
+        for (String destination : better) {
+            for (MessageBT msg : contact.getStore().forDestination(destination)) {
+                if (!contact.peerMightHave(msg.getId()) && chosen.add(msg.getId())) {
+                    selected.add(Contact.replica(msg));
+                }
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void transferred(Contact contact, List<MessageBT> sent) {
+    }
+
+    @Override
+    public void contactDown(Contact contact) {
+        contact.setStrategyState(null);
+    }
+
+    /**
+     * @return the predictability of delivering to the message's destination
+     */
+    @Override
+    public double utility(MessageBT message, long time) {
+        return getPredictability(MessageStore.addressKey(message.getDestination()), time);
+    }
+
+    /**
+     * @return the delivery predictability towards a device, 0 if unknown
+     */
+    public synchronized double getPredictability(String address, long time) {
+        age(time);
+        return get(address);
+    }
+
+    @Override
+    public synchronized long getStateBytes() {
+        return (long) mPredictability.size() * ENTRY_BYTES;
+    }
+
+    private double get(String address) {
+        Double p = mPredictability.get(address);
+        return p == null ? 0 : p;
+    }
+
+    private void put(String address, double p) {
+        if (!mPredictability.containsKey(address) && mPredictability.size() >= MAX_ENTRIES) {
+            forgetWeakest();
+        }
+        mPredictability.put(address, p);
+    }
+
+    private void forgetWeakest() {
+        String weakest = null;
+        double weakestP = Double.MAX_VALUE;
+        for (Map.Entry<String, Double> entry : mPredictability.entrySet()) {
+            if (entry.getValue() < weakestP) {
+                weakest = entry.getKey();
+                weakestP = entry.getValue();
+            }
+        }
+        mPredictability.remove(weakest);
+    }
+
+    // Apply the aging of the whole time units since the last call
+    private void age(long time) {
+        if (mAgedAt < 0) {
+            mAgedAt = time;
+            return;
+        }
+        long units = (time - mAgedAt) / AGING_UNIT_MILLIS;
+        if (units <= 0) {
+            return;
+        }
+        double factor = Math.pow(GAMMA, units);
+        ArrayList<String> forgotten = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : mPredictability.entrySet()) {
+            double p = entry.getValue() * factor;
+            if (p < P_MIN) {
+                forgotten.add(entry.getKey());
+            } else {
+                entry.setValue(p);
+            }
+        }
+        for (String address : forgotten) {
+            mPredictability.remove(address);
+        }
+        mAgedAt += units * AGING_UNIT_MILLIS;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Shares the radio between inquiries and sessions. A classic Bluetooth
+ * inquiry takes most of the radio's time, so RFCOMM links crawl while
+ * one runs; every inquiry request and every session start goes through
+ * here so transfers come first.
+ *
+ * An inquiry is refused while sessions are moving data. Sessions that
+ * have been quiet for {@link #QUIET_MILLIS} leave room for a short
+ * window of {@link #WINDOW_MILLIS}, and so does an inquiry that cannot
+ * wait any longer. A session starting, or data moving during a window,
+ * cancels the inquiry.
+ *
+ * The time the radio spends idle, inquiring, serving sessions or doing
+ * both is accounted for, see {@link #getModeMillis(int, long)}. Like
+ * {@link DiscoveryScheduler} it never reads the clock itself.
+ */
+public class RadioArbiter {
+
+    /**
+     * What actually starts and stops inquiries, e.g. the BluetoothAdapter.
+     */
+    public interface Radio {
+        void startDiscovery();
+        void cancelDiscovery();
+    }
+
+    public static final int MODE_IDLE = 0;
+    public static final int MODE_INQUIRY = 1;
+    public static final int MODE_TRANSFER = 2;
+    // Inquiry and sessions at the same time
+    public static final int MODE_SHARED = 3;
+
+    // No data for this long and the sessions count as quiet
+    public static final long QUIET_MILLIS = 2 * 1000;
+    // Two inquiry trains, enough to hear from devices close by
+    public static final long WINDOW_MILLIS = 2560;
+
+    private Radio mRadio;
+
+    private boolean mInquiring;
+    // True if the running inquiry is a window between transfers
+    private volatile boolean mWindow;
+    private int mSessions;
+    private volatile long mLastActivity;
+
+    private final long[] mModeMillis = new long[4];
+    private long mAccountedTo = -1;
+    private long mInquiries;
+    private long mRefused;
+    private long mPreempted;
+
+    public synchronized void setRadio(Radio radio) {
+        mRadio = radio;
+    }
+
+    /**
+     * Ask to run an inquiry. If granted, the inquiry is started.
+     * @param millis  How long the inquiry would like to last
+     * @param overdue  True if it has waited long enough and should at
+     *                 least get a window
+     * @return how long the inquiry may last, 0 if it has to wait
+     */
+    public synchronized long requestInquiry(long now, long millis, boolean overdue) {
+        account(now);
+        long granted;
+        if (mSessions == 0) {
+            granted = millis;
+        } else if (overdue || now - mLastActivity >= QUIET_MILLIS) {
+            granted = Math.min(millis, WINDOW_MILLIS);
+        } else {
+            mRefused++;
+            return 0;
+        }
+        mWindow = mSessions > 0;
+        mInquiring = true;
+        mInquiries++;
+        if (mRadio != null) {
+            mRadio.startDiscovery();
+        }
+        return granted;
+    }
+
+    /**
+     * End the running inquiry early, e.g. when its window is over.
+     */
+    public synchronized void cancelInquiry(long now) {
+        if (mInquiring && mRadio != null) {
+            mRadio.cancelDiscovery();
+        }
+        inquiryFinished(now);
+    }
+
+    /**
+     * The inquiry is over, whoever ended it.
+     */
+    public synchronized void inquiryFinished(long now) {
+        account(now);
+        mInquiring = false;
+        mWindow = false;
+    }
+
+    /**
+     * A session is about to connect or was accepted: the inquiry, if
+     * any, has to go.
+     */
+    public synchronized void sessionStarting(long now) {
+        account(now);
+        mLastActivity = now;
+        preempt();
+    }
+
+    /**
+     * The number of sessions changed.
+     */
+    public synchronized void sessionsChanged(int sessions, long now) {
+        account(now);
+        mSessions = sessions;
+    }
+
+    /**
+     * Data moved on a session. Called for every read and write, so it
+     * only takes the lock while an inquiry window is open.
+     */
+    public void transferActivity(long now) {
+        mLastActivity = now;
+        if (mWindow) {
+            synchronized (this) {
+                account(now);
+                preempt();
+            }
+        }
+    }
+
+    private void preempt() {
+        if (mInquiring) {
+            mPreempted++;
+            if (mRadio != null) {
+                mRadio.cancelDiscovery();
+            }
+            mInquiring = false;
+            mWindow = false;
+        }
+    }
+
+    // Charge the time since the last change to the mode the radio was in
+    private void account(long now) {
+        if (mAccountedTo >= 0 && now > mAccountedTo) {
+            mModeMillis[mode()] += now - mAccountedTo;
+        }
+        mAccountedTo = Math.max(mAccountedTo, now);
+    }
+
+    private int mode() {
+        if (mInquiring) {
+            return mSessions > 0 ? MODE_SHARED : MODE_INQUIRY;
+        }
+        return mSessions > 0 ? MODE_TRANSFER : MODE_IDLE;
+    }
+
+    /**
+     * @param mode  One of the MODE_* constants
+     * @return the time spent in that mode until now, in milliseconds
+     */
+    public synchronized long getModeMillis(int mode, long now) {
+        account(now);
+        return mModeMillis[mode];
+    }
+
+    public synchronized boolean isInquiring() {
+        return mInquiring;
+    }
+
+    /** Inquiries granted so far. */
+    public synchronized long getInquiryCount() {
+        return mInquiries;
+    }
+
+    /** Inquiry requests turned down because sessions were busy. */
+    public synchronized long getRefusedCount() {
+        return mRefused;
+    }
+
+    /** Inquiries cut short by a session starting or data moving. */
+    public synchronized long getPreemptedCount() {
+        return mPreempted;
+    }
+}
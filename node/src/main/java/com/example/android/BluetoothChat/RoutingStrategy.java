@@ -0,0 +1,82 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which messages move to a peer during a contact.
+ *
+ * A node calls the strategy of the moment for every session, in this
+ * order: {@link #contactUp} once the link is up, {@link #encodeState}
+ * while sending its handshake, {@link #peerState} if the peer sent state
+ * from a strategy of the same name, {@link #select} once the peer's
+ * digest, profile and beacons are known, {@link #transferred} after the
+ * selected copies were written, and {@link #contactDown} when the session
+ * ends, whatever happened before. Calls for different contacts come from
+ * different session threads and may overlap. {@link #utility} is asked
+ * for every copy the node stores and, since contacts change what the
+ * strategy knows, for all stored messages after every contact.
+ *
+ * Strategies can be swapped at runtime with
+ * {@link SpotNetNode#setRoutingStrategy(RoutingStrategy)}; sessions
+ * already running keep the one they started with.
+ */
+public interface RoutingStrategy {
+
+    /**
+     * @return a short name, also used to match the state of peers
+     */
+    String getName();
+
+    /**
+     * A session with a peer started.
+     */
+    void contactUp(Contact contact);
+
+    /**
+     * @return state to share with the peer in a ROUTING frame, or null
+     */
+    byte[] encodeState(Contact contact);
+
+    /**
+     * The peer sent the state of a strategy of the same name.
+     * @throws IOException if the payload cannot be decoded
+     */
+    void peerState(Contact contact, byte[] payload) throws IOException;
+
+    /**
+     * Pick the copies to hand to the peer. Copies taken from a spray
+     * budget must be claimed with {@link Contact#claimCopies(MessageId)},
+     * so that those the peer never acknowledges go back.
+     * @return the copies to send, each carrying the copies handed over
+     */
+    ArrayList<MessageBT> select(Contact contact);
+
+    /**
+     * The peer acknowledged these copies. Copies left out did not make
+     * it, for lack of time or because the link dropped.
+     */
+    void transferred(Contact contact, List<MessageBT> sent);
+
+    /**
+     * The session with the peer is over.
+     */
+    void contactDown(Contact contact);
+
+    /**
+     * How much it is worth keeping a message on this node, e.g. how well
+     * the node can bring it towards its destination. The node keeps it
+     * with {@link MessageStore#setUtility(MessageId, double)}, where it
+     * orders transmissions and, with {@link EvictionPolicy#LOWEST_UTILITY},
+     * eviction.
+     * @param time  Current time in milliseconds since the epoch
+     * @return 0 or more, 0 if the strategy makes no difference
+     */
+    double utility(MessageBT message, long time);
+
+    /**
+     * @return estimated heap bytes held by the strategy between contacts
+     */
+    long getStateBytes();
+}
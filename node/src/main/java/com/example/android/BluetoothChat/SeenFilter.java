@@ -0,0 +1,157 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers which messages this node has already seen, including those
+ * long gone from the store, in a fixed amount of memory.
+ *
+ * Two Bloom filters take turns: IDs are added to the current one and
+ * looked up in both. Once the current filter holds its share of IDs the
+ * older one is cleared and becomes the current one, so the filter always
+ * remembers at least the last {@code capacity} IDs and at most twice
+ * that. A false positive makes the node drop a message it never had, so
+ * the filters are sized generously: with 20 bits and 14 probes per ID
+ * each generation answers wrongly for fewer than one ID in 10,000.
+ */
+public class SeenFilter {
+
+    private static final int BITS_PER_ID = 20;
+    private static final int HASHES = 14;
+
+    private final int mCapacity;
+    private final int mBitCount;
+    private long[] mCurrent;
+    private long[] mPrevious;
+    private int mCurrentCount;
+
+    /**
+     * @param capacity  Number of most recent IDs that are always remembered
+     */
+    public SeenFilter(int capacity) {
+        mCapacity = capacity;
+        mBitCount = Math.max(64, capacity * BITS_PER_ID);
+        mCurrent = new long[(mBitCount + 63) >>> 6];
+        mPrevious = new long[mCurrent.length];
+    }
+
+    /**
+     * Record an id.
+     * @return true if the id was probably seen before
+     */
+    public synchronized boolean add(MessageId id) {
+        long hash = id.hash64();
+        if (contains(mCurrent, hash)) {
+            return true;
+        }
+        // Seen in the older generation: copy it forward so it stays remembered
+        boolean seen = contains(mPrevious, hash);
+        if (mCurrentCount >= mCapacity) {
+            // Forget the oldest generation
+            long[] recycled = mPrevious;
+            Arrays.fill(recycled, 0);
+            mPrevious = mCurrent;
+            mCurrent = recycled;
+            mCurrentCount = 0;
+        }
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCount;
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+        mCurrentCount++;
+        return seen;
+    }
+
+    /**
+     * @return true if the id was probably seen
+     */
+    public synchronized boolean mightContain(MessageId id) {
+        long hash = id.hash64();
+        return contains(mCurrent, hash) || contains(mPrevious, hash);
+    }
+
+    /**
+     * Write the state of the filter, for {@link #readFrom(WireReader)}.
+     * Only the words with bits set are written, a filter that is far from
+     * full takes little space.
+     */
+    public synchronized void writeTo(WireWriter out) {
+        out.writeVarInt(mBitCount);
+        out.writeVarInt(mCurrentCount);
+        writeWords(out, mCurrent);
+        writeWords(out, mPrevious);
+    }
+
+    /**
+     * Take over a state written by {@link #writeTo(WireWriter)}.
+     * @return false if a filter of another size wrote it, this one is
+     *         left as it was
+     */
+    public synchronized boolean readFrom(WireReader in) throws IOException {
+        if (in.readVarInt() != mBitCount) {
+            return false;
+        }
+        int count = in.readVarInt();
+        long[] current = readWords(in, mCurrent.length);
+        long[] previous = readWords(in, mPrevious.length);
+        mCurrent = current;
+        mPrevious = previous;
+        mCurrentCount = count;
+        return true;
+    }
+
+    // The number of words set, then for each the gap since the last one and the word
+    private static void writeWords(WireWriter out, long[] words) {
+        int set = 0;
+        for (long word : words) {
+            if (word != 0) {
+                set++;
+            }
+        }
+        out.writeVarInt(set);
+        int last = -1;
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != 0) {
+                out.writeVarInt(i - last - 1);
+                out.writeLong(words[i]);
+                last = i;
+            }
+        }
+    }
+
+    private static long[] readWords(WireReader in, int length) throws IOException {
+        long[] words = new long[length];
+        int set = in.readVarInt();
+        int index = -1;
+        for (int i = 0; i < set; i++) {
+            index += in.readVarInt() + 1;
+            if (index < 0 || index >= length) {
+                throw new IOException("Filter word " + index + " out of range");
+            }
+            words[index] = in.readLong();
+        }
+        return words;
+    }
+
+    /**
+     * @return bytes used by the filter
+     */
+    public int sizeInBytes() {
+        return mCurrent.length * 16;
+    }
+
+    private boolean contains(long[] bits, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCount;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,1902 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A SpotNet node without any Android dependency. It owns the message
+ * store, the beacons this node has detected and the exchange protocol,
+ * and manages the sessions with remote nodes over a {@link Transport}.
+ *
+ * It has a thread that listens for incoming connections, and for every
+ * remote node a session with a thread for connecting to it and a thread
+ * for performing data transmissions when connected. Sessions run side by
+ * side, up to {@link #setMaxSessions(int)} of them. A session stays
+ * open while the link holds: news is exchanged in further rounds,
+ * keepalives show the peer is still in range, and the longest idle link
+ * makes room when the limit is reached.
+ *
+ * What happens on the node is reported to {@link NodeListener}s, called
+ * from the session threads.
+ */
+public class SpotNetNode {
+    private static final Logger LOG = Logger.getLogger("SpotNetNode");
+
+    // Roughly the number of active slaves in a Bluetooth piconet
+    public static final int DEFAULT_MAX_SESSIONS = 7;
+
+    // Default buffer budget, enough for a busy relay without growing the heap forever
+    public static final int DEFAULT_MAX_MESSAGES = 20000;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE = 0;       // we're doing nothing
+    public static final int STATE_LISTEN = 1;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // Member fields
+    private final Transport mTransport;
+    private final MessageStore mStore = new MessageStore(DEFAULT_MAX_MESSAGES,
+            DEFAULT_MAX_BYTES, EvictionPolicy.LEAST_RECENTLY_FORWARDED);
+    private final CopyOnWriteArrayList<NodeListener> mListeners = new CopyOnWriteArrayList<>();
+    private AcceptThread mAcceptThread;
+    private int mState;
+
+    // When, how often and how long each detected beacon was seen
+    private final EncounterHistory mHistory = new EncounterHistory();
+
+    // Where this node goes, and the forwarding decision built on it
+    private final LocationRouter mRouter = new LocationRouter(new MobilityProfile());
+
+    // Forwarding decision used by new sessions, and what it has cost so far
+    private volatile RoutingStrategy mRouting = new BeaconMatchRouting(mRouter);
+    private final AtomicLong mRoutedContacts = new AtomicLong();
+    private final AtomicLong mRoutingNanos = new AtomicLong();
+    private final AtomicLong mRoutedBytes = new AtomicLong();
+
+    // What a contact can carry, learned from the contacts so far
+    private final ContactBudget mBudget = new ContactBudget();
+
+    // Messages known to have reached their destination
+    private final DeliveredSet mDelivered = new DeliveredSet();
+
+    // Which copy went to which peer, where and when
+    private final ForwardLog mForwardLog = new ForwardLog();
+
+    // When the app should look for beacons and peers next
+    private final DiscoveryScheduler mDiscovery = new DiscoveryScheduler(System.currentTimeMillis());
+
+    // Keeps inquiries out of the way of the sessions
+    private final RadioArbiter mArbiter = new RadioArbiter();
+
+    // What was last exchanged with each peer, for delta handshakes
+    private final PeerStateCache mPeerCache = new PeerStateCache();
+
+    // Live sessions keyed by remote device address
+    private final HashMap<String, Session> mSessions = new HashMap<>();
+    private int mMaxSessions = DEFAULT_MAX_SESSIONS;
+
+    // Beacons whose closeness is sent to a peer, the closest ones
+    public static final int PROFILE_BEACONS = 64;
+    // Beacons listed in GET-BEACONS and BEACONS-REPLY, the most visited ones
+    public static final int HANDSHAKE_BEACONS = 64;
+    // Anti-packets sent in a handshake, the most recent deliveries
+    public static final int HANDSHAKE_DELIVERED = 256;
+    // Exchange protocol spoken by this node, first thing in every HELLO
+    public static final int PROTOCOL_VERSION = 1;
+    // Copies for the peer itself sent with the initiator's handshake, about
+    // what an RFCOMM link moves during one round trip
+    public static final long SPECULATIVE_BYTES = 4 * 1024;
+
+    // How long the last frames of a session may take to go out before the link closes
+    public static final long DRAIN_MILLIS = 2000;
+    // How long a sender blocked by a full write queue waits before reading again
+    public static final long BACKPRESSURE_POLL_MILLIS = 50;
+    // An open session with nothing to say sends a KEEPALIVE this often, and
+    // one that hears nothing for three of them counts the link as lost
+    public static final long KEEPALIVE_MILLIS = 5 * 1000;
+    public static final long LINK_TIMEOUT_MILLIS = 3 * KEEPALIVE_MILLIS;
+
+    // Spray-and-Wait copy budget L of the messages created on this node
+    private volatile int mCopyBudget = MessageBT.DEFAULT_COPIES;
+
+    // Lifetime of the messages created on this node
+    private volatile long mMessageTtl = MessageBT.DEFAULT_TTL_MILLIS;
+
+    // Drops expired messages from the store while the node runs
+    private Timer mExpiryTimer;
+
+    /**
+     * @param transport  The medium to listen and connect on
+     */
+    public SpotNetNode(Transport transport) {
+        mTransport = transport;
+        mState = STATE_NONE;
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public MessageStore getStore() {
+        return mStore;
+    }
+
+    public void addListener(NodeListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(NodeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Record a beacon seen by this node, now.
+     * @param address  Address of the beacon
+     * @param name  Advertised name of the beacon
+     */
+    public void addBeacon(String address, String name) {
+        addBeacon(address, name, EncounterHistory.NO_RSSI);
+    }
+
+    /**
+     * Record a beacon seen by this node, now.
+     * @param address  Address of the beacon
+     * @param name  Advertised name of the beacon
+     * @param rssi  Signal strength in dBm, or {@link EncounterHistory#NO_RSSI}
+     * @return true if the sighting starts a new encounter with the beacon
+     */
+    public boolean addBeacon(String address, String name, int rssi) {
+        long now = System.currentTimeMillis();
+        // Repeated sightings during one stay are dwell time, not more visits
+        if (mHistory.recordSighting(address, name, rssi, now)) {
+            mRouter.getProfile().recordVisit(address, now);
+            // Peers on open links route by where we are
+            syncSessions(null);
+            return true;
+        }
+        return false;
+    }
+
+    public EncounterHistory getHistory() {
+        return mHistory;
+    }
+
+    public MobilityProfile getProfile() {
+        return mRouter.getProfile();
+    }
+
+    public LocationRouter getRouter() {
+        return mRouter;
+    }
+
+    /**
+     * Change the forwarding decision. Sessions already running finish
+     * with the strategy they started with.
+     */
+    public void setRoutingStrategy(RoutingStrategy routing) {
+        mRouting = routing;
+        refreshUtilities();
+    }
+
+    /**
+     * Ask the routing strategy again what every stored message is worth.
+     * Done after every contact, since contacts change what the strategy
+     * knows, and on start, as utilities are not logged.
+     */
+    public void refreshUtilities() {
+        RoutingStrategy routing = mRouting;
+        long now = System.currentTimeMillis();
+        for (MessageBT message : mStore.messages()) {
+            mStore.setUtility(message.getId(), routing.utility(message, now));
+        }
+    }
+
+    // A copy that just came in gets its utility before anyone picks it
+    private void storeUtility(MessageBT message) {
+        mStore.setUtility(message.getId(), mRouting.utility(message, System.currentTimeMillis()));
+    }
+
+    public RoutingStrategy getRoutingStrategy() {
+        return mRouting;
+    }
+
+    public ContactBudget getContactBudget() {
+        return mBudget;
+    }
+
+    public DeliveredSet getDelivered() {
+        return mDelivered;
+    }
+
+    public ForwardLog getForwardLog() {
+        return mForwardLog;
+    }
+
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return mDiscovery;
+    }
+
+    public RadioArbiter getRadioArbiter() {
+        return mArbiter;
+    }
+
+    public PeerStateCache getPeerStateCache() {
+        return mPeerCache;
+    }
+
+    /**
+     * @return true if an address, as found in a message destination, is this node's
+     */
+    public boolean isLocalAddress(String address) {
+        return address != null && address.equalsIgnoreCase(mTransport.getLocalAddress());
+    }
+
+    /**
+     * A message reached this node, its destination: hand it to the
+     * listeners once, and stop carrying it.
+     */
+    private void deliverLocally(MessageBT message) {
+        mStore.remove(message.getId());
+        if (mDelivered.add(message.getId(), message.getExpiresAt())) {
+            for (NodeListener listener : mListeners) {
+                listener.onMessageDelivered(message);
+            }
+        }
+    }
+
+    /**
+     * A message reached its destination elsewhere: drop our copy and
+     * remember it so the news spreads and the copy does not come back.
+     * @return true if we did not know yet
+     */
+    private boolean learnDelivered(MessageId id, long expiresAt) {
+        boolean added = mDelivered.add(id, expiresAt);
+        mStore.remove(id);
+        return added;
+    }
+
+    /**
+     * @return the number of contacts in which the routing strategy picked messages
+     */
+    public long getRoutedContacts() {
+        return mRoutedContacts.get();
+    }
+
+    /**
+     * @return the CPU time spent picking messages, over all contacts, in nanoseconds
+     */
+    public long getRoutingNanos() {
+        return mRoutingNanos.get();
+    }
+
+    /**
+     * @return the bytes sent for the routing strategy, over all contacts:
+     *         the copies it picked, in MSG frames, and its state
+     */
+    public long getRoutedBytes() {
+        return mRoutedBytes.get();
+    }
+
+    /**
+     * The beacons seen by this node, address -> name, as a snapshot.
+     */
+    public Map<String, String> getBeacons() {
+        return mHistory.names();
+    }
+
+    /**
+     * State of the link with one remote device. Every session owns its
+     * own connect and connected threads so several peers can be served
+     * at the same time.
+     */
+    private class Session {
+        final String address;
+        // True if we opened the connection and therefore start the exchange
+        final boolean initiator;
+        int state;
+        ConnectThread connectThread;
+        ConnectedThread connectedThread;
+
+        Session(String address, boolean initiator) {
+            this.address = address;
+            this.initiator = initiator;
+        }
+
+        void cancel() {
+            if (connectThread != null) {connectThread.cancel(); connectThread = null;}
+            if (connectedThread != null) {connectedThread.cancel(); connectedThread = null;}
+        }
+    }
+
+    /**
+     * Set the current state of the chat connection
+     * @param state  An integer defining the current connection state
+     */
+    private synchronized void setState(int state) {
+        LOG.fine("setState() " + mState + " -> " + state);
+        mState = state;
+
+        // Give the new state to the listeners so the UI can update
+        for (NodeListener listener : mListeners) {
+            listener.onStateChanged(state);
+        }
+    }
+
+    /**
+     * Return the current connection state. This is the most advanced
+     * state of any session, or the listening state if there is none. */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Recompute the overall state from the live sessions and publish it if it changed.
+     */
+    private synchronized void updateState() {
+        int state = mAcceptThread != null ? STATE_LISTEN : STATE_NONE;
+        for (Session session : mSessions.values()) {
+            state = Math.max(state, session.state);
+        }
+        if (state != mState) {
+            setState(state);
+        }
+        // Open links between rounds leave the radio to inquiries
+        int busy = 0;
+        for (Session session : mSessions.values()) {
+            if (session.connectedThread == null || !session.connectedThread.isIdle()) {
+                busy++;
+            }
+        }
+        mArbiter.sessionsChanged(busy, System.currentTimeMillis());
+    }
+
+    /**
+     * Limit the number of simultaneous sessions. Existing sessions are
+     * kept, the limit applies to new connections.
+     * @param maxSessions  At least one
+     */
+    public synchronized void setMaxSessions(int maxSessions) {
+        mMaxSessions = Math.max(1, maxSessions);
+    }
+
+    public synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Set the number of copies L a new message may spread in. Halved on
+     * every hand-off, so a message reaches at most L carriers before all
+     * of them wait for the destination.
+     * @param copies  At least one; one means direct delivery only
+     */
+    public void setCopyBudget(int copies) {
+        mCopyBudget = Math.max(1, copies);
+    }
+
+    public int getCopyBudget() {
+        return mCopyBudget;
+    }
+
+    /**
+     * Set the lifetime of the messages created from now on. Every node
+     * drops a message once its creation time plus this TTL has passed.
+     * @param ttl  Milliseconds
+     */
+    public void setMessageTtl(long ttl) {
+        mMessageTtl = Math.max(0, ttl);
+    }
+
+    public long getMessageTtl() {
+        return mMessageTtl;
+    }
+
+    /**
+     * Create a message on this node and buffer it for delivery.
+     * @param text  Message text
+     * @param destination  Address of the destination device
+     * @param beaconId  Beacon near which the destination is expected
+     * @return the stored message
+     */
+    public MessageBT originate(String text, String destination, String beaconId) {
+        MessageBT message = new MessageBT(text, destination, beaconId);
+        message.setCopies(mCopyBudget);
+        message.setTtl(mMessageTtl);
+        if (isLocalAddress(destination)) {
+            deliverLocally(message);
+        } else {
+            mStore.put(message);
+            storeUtility(message);
+            mDiscovery.wake(System.currentTimeMillis());
+            syncSessions(null);
+        }
+        return message;
+    }
+
+    /**
+     * Start the node. Specifically start AcceptThread to begin a
+     * session in listening (server) mode. */
+    public synchronized void start() {
+        LOG.fine("start");
+
+        // Cancel every session, connecting or connected
+        for (Session session : mSessions.values()) {
+            session.cancel();
+        }
+        mSessions.clear();
+        refreshUtilities();
+
+        // Start the thread to listen on the transport
+        if (mAcceptThread == null) {
+            mAcceptThread = new AcceptThread();
+            mAcceptThread.start();
+        }
+
+        if (mExpiryTimer == null) {
+            mExpiryTimer = new Timer("ExpiryTimer", true);
+            mExpiryTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    mStore.expire(now);
+                    mDelivered.expire(now);
+                    closeStalledSessions(now);
+                    keepSessionsAlive(now);
+                }
+            }, MessageStore.EXPIRY_TICK_MILLIS, MessageStore.EXPIRY_TICK_MILLIS);
+        }
+
+        setState(STATE_LISTEN);
+    }
+
+    /**
+     * Start a ConnectThread for every device in the list, up to the
+     * session limit. Devices we already have a session with are skipped.
+     * @param deviceListString  Comma separated MAC addresses
+     */
+    public synchronized void connect(String deviceListString) {
+
+        String []deviceList = deviceListString.split(",");
+
+        for (String address : deviceList) {
+            if (mSessions.containsKey(address)) {
+                LOG.fine("already have a session with " + address);
+                continue;
+            }
+            if (mSessions.size() >= mMaxSessions && !closeIdleSession()) {
+                LOG.warning("session limit " + mMaxSessions + " reached, not connecting to " + address);
+                break;
+            }
+
+            LOG.fine("connect to: " + address);
+
+            Link link;
+            try {
+                link = mTransport.createLink(address);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to create link to " + address, e);
+                continue;
+            }
+
+            // Start the thread to connect with the given device
+            Session session = new Session(address, true);
+            session.state = STATE_CONNECTING;
+            session.connectThread = new ConnectThread(session, link);
+            mSessions.put(address, session);
+            session.connectThread.start();
+        }
+
+        updateState();
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * @param session  The session the connection belongs to
+     * @param link  The link on which the connection was made
+     */
+    private synchronized void connected(Session session, Link link) {
+        LOG.fine("connected to " + session.address);
+
+        // The thread that completed the connection is done
+        session.connectThread = null;
+
+        // Start the thread to manage the connection and perform transmissions
+        session.state = STATE_CONNECTED;
+        session.connectedThread = new ConnectedThread(session, link);
+        session.connectedThread.start();
+
+        // Tell the listeners who we are connected to
+        for (NodeListener listener : mListeners) {
+            listener.onPeerConnected(link.getPeer());
+        }
+
+        updateState();
+    }
+
+    /**
+     * Decide what to do with a link accepted from a remote device.
+     * @return true if the link was taken over by a new session
+     */
+    private synchronized boolean accepted(Link link) {
+        if (mAcceptThread == null) {
+            // Not ready
+            return false;
+        }
+        String address = link.getPeer().getAddress();
+        Session existing = mSessions.get(address);
+        if (existing != null) {
+            // Both sides dialled each other. Keep the connection opened by
+            // the device with the lower address so both ends agree.
+            boolean keepIncoming = existing.state == STATE_CONNECTING
+                    && address.compareTo(String.valueOf(mTransport.getLocalAddress())) < 0;
+            if (!keepIncoming) {
+                return false;
+            }
+            existing.cancel();
+            mSessions.remove(address);
+        } else if (mSessions.size() >= mMaxSessions && !closeIdleSession()) {
+            LOG.warning("session limit " + mMaxSessions + " reached, refusing " + address);
+            return false;
+        }
+
+        Session session = new Session(address, false);
+        mSessions.put(address, session);
+        mArbiter.sessionStarting(System.currentTimeMillis());
+        connected(session, link);
+        return true;
+    }
+
+    /**
+     * Tear down a single session and forget it. Other sessions and the
+     * listening socket are left alone.
+     */
+    private synchronized void endSession(Session session) {
+        LOG.fine("end session with " + session.address);
+        session.cancel();
+        if (mSessions.get(session.address) == session) {
+            mSessions.remove(session.address);
+        }
+        updateState();
+    }
+
+    /**
+     * Make room for a new session by closing the open link that has been
+     * idle the longest.
+     * @return true if a session was closed
+     */
+    private synchronized boolean closeIdleSession() {
+        Session idlest = null;
+        long idleSince = Long.MAX_VALUE;
+        for (Session session : mSessions.values()) {
+            ConnectedThread r = session.connectedThread;
+            if (r != null && r.isIdle() && r.getIdleSince() < idleSince) {
+                idlest = session;
+                idleSince = r.getIdleSince();
+            }
+        }
+        if (idlest == null) {
+            return false;
+        }
+        LOG.fine("closing idle session with " + idlest.address);
+        mSessions.remove(idlest.address);
+        idlest.connectedThread.release();
+        return true;
+    }
+
+    /**
+     * Stop all threads
+     */
+    public synchronized void stop() {
+        LOG.fine("stop");
+
+        for (Session session : mSessions.values()) {
+            session.cancel();
+        }
+        mSessions.clear();
+
+        if (mAcceptThread != null) {
+            mAcceptThread.cancel();
+            mAcceptThread = null;
+        }
+
+        if (mExpiryTimer != null) {
+            mExpiryTimer.cancel();
+            mExpiryTimer = null;
+        }
+        mArbiter.sessionsChanged(0, System.currentTimeMillis());
+        setState(STATE_NONE);
+    }
+
+    /**
+     * Queue a text frame for every connected session, without blocking.
+     * @param out The bytes to write, sent to the peers as a text frame
+     * @return false if a session's queue was full and the frame was not
+     *         queued there, so the caller should back off
+     */
+    public boolean write(byte[] out) {
+        // Perform the writes unsynchronized
+        boolean queued = true;
+        for (ConnectedThread r : connectedThreads()) {
+            queued &= r.offerFrame(Frame.TYPE_TEXT, out);
+        }
+        return queued;
+    }
+
+    /**
+     * Close the sessions whose writes have been blocked for longer than
+     * the stall timeout; their read loops then report the lost link.
+     */
+    private void closeStalledSessions(long now) {
+        for (ConnectedThread r : connectedThreads()) {
+            if (r.isWriteStalled(now)) {
+                LOG.warning("Write stalled, closing " + r.mmSession.address);
+                r.cancel();
+            }
+        }
+    }
+
+    /**
+     * Send keepalives on the open links that have been quiet, and close
+     * those the peer has not been heard on for the link timeout.
+     */
+    private void keepSessionsAlive(long now) {
+        for (ConnectedThread r : connectedThreads()) {
+            if (r.isSilent(now)) {
+                LOG.warning("Nothing heard, closing " + r.mmSession.address);
+                r.cancel();
+            } else {
+                r.keepAlive();
+            }
+        }
+    }
+
+    /**
+     * Tell the open links there is something new to exchange.
+     * @param source  The session the news came from, or null
+     */
+    private void syncSessions(ConnectedThread source) {
+        for (ConnectedThread r : connectedThreads()) {
+            if (r != source) {
+                r.requestSync();
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the connected threads, to use without holding the lock
+     */
+    private synchronized ArrayList<ConnectedThread> connectedThreads() {
+        ArrayList<ConnectedThread> threads = new ArrayList<>();
+        for (Session session : mSessions.values()) {
+            if (session.connectedThread != null) {
+                threads.add(session.connectedThread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Indicate that the connection attempt failed and notify the listeners.
+     */
+    private void connectionFailed(Session session) {
+        for (NodeListener listener : mListeners) {
+            listener.onConnectionFailed(session.address);
+        }
+
+        // Drop the session, listening mode carries on
+        endSession(session);
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the listeners.
+     */
+    private void connectionLost(Session session) {
+        for (NodeListener listener : mListeners) {
+            listener.onConnectionLost(session.address);
+        }
+
+        // Drop the session, listening mode carries on
+        endSession(session);
+    }
+
+    private void frameReceived(Peer peer, Frame frame) {
+        for (NodeListener listener : mListeners) {
+            listener.onFrameReceived(peer, frame.getType(), frame.getPayload());
+        }
+    }
+
+    /**
+     * This thread runs while listening for incoming connections. It behaves
+     * like a server-side client. It keeps accepting connections for new
+     * sessions until cancelled.
+     */
+    private class AcceptThread extends Thread {
+        // The local listening endpoint
+        private final LinkListener mmListener;
+
+        public AcceptThread() {
+            LinkListener tmp = null;
+
+            // Create a new listening endpoint
+            try {
+                tmp = mTransport.listen();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "listen() failed", e);
+            }
+            mmListener = tmp;
+        }
+
+        public void run() {
+            LOG.fine("BEGIN mAcceptThread" + this);
+            setName("AcceptThread");
+
+            if (mmListener == null) {
+                return;
+            }
+
+            Link link = null;
+
+            // Listen until cancelled
+            while (true) {
+                try {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    link = mmListener.accept();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "accept() failed", e);
+                    break;
+                }
+
+                // If a connection was accepted
+                if (link != null && !accepted(link)) {
+                    // Either not ready, full or already connected. Terminate new link.
+                    try {
+                        link.close();
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Could not close unwanted link", e);
+                    }
+                }
+            }
+            LOG.info("END mAcceptThread");
+
+        }
+
+        public void cancel() {
+            LOG.fine("cancel " + this);
+            if (mmListener == null) {
+                return;
+            }
+            try {
+                mmListener.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "close() of listener failed", e);
+            }
+        }
+    }
+
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread extends Thread {
+        private final Session mmSession;
+        private final Link mmLink;
+
+        public ConnectThread(Session session, Link link) {
+            mmSession = session;
+            mmLink = link;
+        }
+
+        public void run() {
+            LOG.info("BEGIN mConnectThread " + mmSession.address);
+            setName("ConnectThread-" + mmSession.address);
+
+            // An inquiry would slow the connection down
+            mArbiter.sessionStarting(System.currentTimeMillis());
+
+            // Make the connection
+            try {
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                mmLink.connect();
+            } catch (IOException e) {
+                // Close the link
+                try {
+                    mmLink.close();
+                } catch (IOException e2) {
+                    LOG.log(Level.WARNING, "unable to close() link during connection failure", e2);
+                }
+                connectionFailed(mmSession);
+                return;
+            }
+
+            synchronized (SpotNetNode.this) {
+                // The session may have been cancelled while we were connecting
+                if (mSessions.get(mmSession.address) != mmSession) {
+                    cancel();
+                    return;
+                }
+                LOG.fine("Calling Service's connected method");
+                // Start the connected thread
+                connected(mmSession, mmLink);
+            }
+        }
+
+        public void cancel() {
+            try {
+                mmLink.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "close() of connecting link failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread runs during a connection with a remote device.
+     * It handles all incoming and outgoing transmissions.
+     */
+    private class ConnectedThread extends Thread
+            implements FrameReader.Listener, FrameWriter.Listener {
+        private final Session mmSession;
+        private final Link mmLink;
+        // Own the link's streams, so reads and writes go on in parallel
+        // while only this thread handles frames
+        private final FrameReader mmReader;
+        private final FrameWriter mmWriter;
+
+        // Forwarding decision for this session and what the remote device told it
+        private final RoutingStrategy mmRouting = mRouting;
+        private final Contact mmContact;
+
+        // Frames that arrived while we were sending, other than ACKs,
+        // waiting for the read loop
+        private final ArrayDeque<Frame> mmPending = new ArrayDeque<>();
+        // Asked for by other threads, done by this one between frames
+        private volatile boolean mmSyncRequested;
+        private volatile boolean mmKeepAliveRequested;
+
+        // Copies sent in this contact, waiting for their ACK or acknowledged
+        private final HashMap<MessageId, MessageBT> mmUnacked = new HashMap<>();
+        private final ArrayList<MessageBT> mmAcked = new ArrayList<>();
+        private final HashSet<MessageId> mmAckedIds = new HashSet<>();
+        // Copies the peer would not take, they are not offered again
+        private final HashSet<MessageId> mmRefusedIds = new HashSet<>();
+        private long mmSendStart;
+        private long mmSentBytes;
+        private int mmSentMsgs;
+        private boolean mmSentDone;
+        private boolean mmLost;
+
+        // What the peer announced: its DONE and how many MSG frames came
+        // before it
+        private boolean mmPeerDone;
+        private int mmPeerMsgs;
+        private int mmReceivedMsgs;
+
+        // The link stays open between rounds. A round starts with a
+        // handshake and ends once both sides said DONE
+        private volatile boolean mmInRound = true;
+        // True while our GET_BEACONS waits for its BEACONS_REPLY
+        private boolean mmRoundInitiator;
+        private long mmRoundStartedAt;
+        // When the first round of the session ended, 0 while it runs
+        private long mmFirstRoundEndedAt;
+        private volatile long mmIdleSince;
+        // Something new for the peer since the round began, and whether we
+        // asked it for a round with SYNC
+        private volatile boolean mmNews;
+        private volatile boolean mmSyncSent;
+        // The peer asked for a round while one was running
+        private boolean mmPeerWantsRound;
+        private volatile long mmLastReadAt;
+        private volatile long mmLastWriteAt;
+        // Closed by us to make room, not lost
+        private volatile boolean mmReleased;
+
+        // What was exchanged with this peer before, the state in our
+        // handshake of this round once sent, and the version of the
+        // peer's digest from its HELLO
+        private final PeerStateCache.PeerState mmPeerState;
+        private boolean mmHandshakeSent;
+        private List<String> mmBeacons;
+        private long[] mmDigestKeys;
+        private long mmBeaconsVersion;
+        private long mmDigestVersion;
+        private long mmPeerDigestVersion;
+        // A delta from the peer did not apply to what we hold: the peer
+        // sends it in full once it sees our HELLO, and until then we do
+        // not pick copies for it
+        private boolean mmBeaconsMissed;
+        private boolean mmDigestMissed;
+        private boolean mmSelectDeferred;
+
+        public ConnectedThread(Session session, Link link) {
+            LOG.fine("create ConnectedThread: " + session.address);
+            mmSession = session;
+            mmLink = link;
+            mmContact = new Contact(mTransport.getLocalAddress(), session.address, mStore,
+                    System.currentTimeMillis());
+            mmContact.setForwardLog(mForwardLog);
+            mmPeerState = mPeerCache.get(session.address);
+            mmRoundStartedAt = mmContact.getStartedAt();
+            mmLastReadAt = mmRoundStartedAt;
+            mmLastWriteAt = mmRoundStartedAt;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // Get the link input and output streams
+            try {
+                tmpIn = link.getInputStream();
+                tmpOut = link.getOutputStream();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "temp sockets not created", e);
+            }
+
+            mmReader = new FrameReader(tmpIn, this);
+            mmReader.setName("FrameReader-" + session.address);
+            mmWriter = new FrameWriter(tmpOut, this);
+            mmWriter.setName("FrameWriter-" + session.address);
+        }
+
+        public void run() {
+            LOG.info("BEGIN mConnectedThread " + mmSession.address);
+            setName("ConnectedThread-" + mmSession.address);
+
+            mmReader.start();
+            mmWriter.start();
+            mmRouting.contactUp(mmContact);
+            try {
+                if(mmSession.initiator) {
+                    LOG.fine("SENDING MESSAGE");
+
+                    // Send my list of detected beacons while requesting the same from other client,
+                    // and in the same flight what is addressed to the other client itself
+                    mmRoundInitiator = true;
+                    writeHandshake(Frame.TYPE_GET_BEACONS);
+                    sendSpeculative();
+                    mmWriter.flush();
+                }
+                exchange();
+            } finally {
+                mmWriter.close();
+                // Copies the peer never acknowledged are still ours to spray
+                mmContact.releaseClaims(mmAckedIds);
+                if (!mmAcked.isEmpty()) {
+                    mmRouting.transferred(mmContact, mmAcked);
+                }
+                // Only the first round counts: after it the link may idle
+                // for hours, which says nothing about how long a walk past
+                // each other lasts. A link that dropped before it ended
+                // shows how long contacts last; one that lasted past it, or
+                // that we released, only shows they last at least that long
+                boolean cut = mmLost && mmFirstRoundEndedAt == 0;
+                long end = mmFirstRoundEndedAt != 0 ? mmFirstRoundEndedAt : System.currentTimeMillis();
+                long duration = end - mmContact.getStartedAt();
+                if (cut || duration > mBudget.getContactMillis()) {
+                    mBudget.recordContact(duration);
+                }
+                mmRouting.contactDown(mmContact);
+                refreshUtilities();
+            }
+        }
+
+        private void exchange() {
+            // Keep handling frames from the reader while connected
+            while (true) {
+                try {
+
+                    LOG.fine("Reading from input...");
+                    // Wait for a frame or for a request from another thread,
+                    // then handle every frame that is already in
+                    Frame frame = nextFrame(true);
+                    boolean finished = frame != null && handleFrame(frame);
+                    while (!finished && (frame = nextFrame(false)) != null) {
+                        finished = handleFrame(frame);
+                    }
+
+                    if (finished) {
+                        // Let the last frames out before the link closes.
+                        // Only this session ends, the others keep going
+                        mmWriter.drain(DRAIN_MILLIS);
+                        endSession(mmSession);
+                        break;
+                    }
+                    runRequests();
+                    // Replies to everything that came in go out together
+                    mmWriter.flush();
+
+                } catch (IOException e) {
+                    if (mmReleased) {
+                        endSession(mmSession);
+                        break;
+                    }
+                    LOG.log(Level.WARNING, "disconnected", e);
+                    mmLost = true;
+                    connectionLost(mmSession);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @param block  Wait for a frame if none is in
+         * @return the next frame, one held back while sending first, or
+         *         null if none is in or another thread woke us
+         */
+        private Frame nextFrame(boolean block) throws IOException {
+            if (!mmPending.isEmpty()) {
+                return mmPending.poll();
+            }
+            return block ? mmReader.take() : mmReader.poll();
+        }
+
+        /**
+         * Handle the ACKs that already arrived, without blocking, so they
+         * do not pile up while we are still sending. Everything else waits
+         * for the read loop: a SYNC or DONE handled in the middle of
+         * sending would start or end a round inside the current one.
+         */
+        private void readAvailable() {
+            try {
+                Frame frame;
+                while ((frame = mmReader.poll()) != null) {
+                    if (frame.getType() == Frame.TYPE_ACK) {
+                        handleFrame(frame);
+                    } else {
+                        mmPending.add(frame);
+                    }
+                }
+            } catch (IOException e) {
+                // The read loop sees the broken link once it gets there
+            }
+        }
+
+        /**
+         * Do what other threads asked for since the last frame.
+         */
+        private void runRequests() {
+            if (mmSyncRequested) {
+                mmSyncRequested = false;
+                sync();
+            }
+            if (mmKeepAliveRequested) {
+                mmKeepAliveRequested = false;
+                sendKeepAlive(System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void onBytesRead(int bytes) {
+            long now = System.currentTimeMillis();
+            mmLastReadAt = now;
+            // A read no longer than a header is a keepalive or another empty frame, not a transfer
+            if (bytes > Frame.HEADER_LENGTH) {
+                mArbiter.transferActivity(now);
+            }
+        }
+
+        /**
+         * Process a single frame received from the remote device.
+         * @param frame  The decoded frame
+         * @return true if the peer cannot be talked to and the connection can be released
+         */
+        private boolean handleFrame(Frame frame) {
+            byte[] payload = frame.getPayload();
+
+            switch (frame.getType()) {
+            //READER
+            case Frame.TYPE_GET_BEACONS: {
+                LOG.fine(" -----#########----- GOT A BEACON REQUEST!");
+
+                // Let the listeners see the obtained bytes
+
+                frameReceived(mmLink.getPeer(), frame);
+
+                // The beacons themselves came in BEACONS-DELTA
+                for (String beacon : mmContact.getPeerBeacons()) {
+                    LOG.fine("-----#########----- GET-BEACON: " + beacon);
+                }
+                if (mmRoundInitiator && mmSession.initiator) {
+                    // Both sides started a round at once: ours goes on and the peer answers it
+                    return false;
+                }
+                if (!mmInRound) {
+                    beginRound();
+                }
+
+                // Reply with my list of detected beacons, preceded by the
+                // summary of what we hold so the writer skips those messages
+                writeHandshake(Frame.TYPE_BEACONS_REPLY);
+                if (mmBeaconsMissed || mmDigestMissed) {
+                    // Picking copies now would go by an empty view of the
+                    // peer; its full state is on the way
+                    mmSelectDeferred = true;
+                    return false;
+                }
+                // The peer's whole handshake came before this frame: our
+                // copies go out right behind the reply, in the same flight
+                sendSelected();
+                maybeEndRound();
+                return false;
+            }
+
+            //WRITER
+            case Frame.TYPE_BEACONS_REPLY: {
+                // Let the listeners see the obtained bytes
+                frameReceived(mmLink.getPeer(), frame);
+
+                // The client's beacons came in BEACONS-DELTA
+                mmRoundInitiator = false;
+
+                // Check if we have a message to forward to this device
+                sendSelected();
+                maybeEndRound();
+                return false;
+            }
+
+            case Frame.TYPE_HELLO:
+                try {
+                    WireReader in = new WireReader(payload);
+                    int version = in.readVarInt();
+                    if (version != PROTOCOL_VERSION) {
+                        LOG.warning("Peer " + mmSession.address + " speaks protocol " + version);
+                        return true;
+                    }
+                    mmPeerDigestVersion = in.readVarLong();
+                    peerHolds(in.readVarLong(), in.readVarLong());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode hello", e);
+                    return true;
+                }
+                return false;
+
+            case Frame.TYPE_BEACONS_DELTA:
+                try {
+                    mmBeaconsMissed = !applyBeaconsDelta(payload);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode beacons delta", e);
+                    mmPeerState.setBeacons(0, null);
+                    mmBeaconsMissed = true;
+                }
+                resumeSelection();
+                return false;
+
+            case Frame.TYPE_DIGEST_DELTA:
+                try {
+                    StoreDigest.Delta delta = StoreDigest.decodeDelta(payload);
+                    StoreDigest held = mmPeerState.getDigest();
+                    if (held != null && mmPeerState.getDigestVersion() == delta.getBase()) {
+                        StoreDigest digest = held.apply(delta);
+                        mmPeerState.setDigest(delta.getVersion(), digest);
+                        mmContact.setPeerDigest(digest);
+                        mmDigestMissed = false;
+                    } else {
+                        // Not the version the delta was made for: our HELLO
+                        // tells the peer to send the full digest
+                        mmPeerState.setDigest(0, null);
+                        mmContact.setPeerDigest(StoreDigest.empty());
+                        mmDigestMissed = true;
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode digest delta", e);
+                    mmPeerState.setDigest(0, null);
+                    mmContact.setPeerDigest(StoreDigest.empty());
+                    mmDigestMissed = true;
+                }
+                resumeSelection();
+                return false;
+
+            case Frame.TYPE_SYNC:
+                if (mmInRound) {
+                    mmPeerWantsRound = true;
+                } else if (mmSession.initiator || !mmSyncSent) {
+                    // If both asked, the side that opened the link starts
+                    startRound();
+                }
+                return false;
+
+            case Frame.TYPE_KEEPALIVE:
+                return false;
+
+            // The peer stored one of the copies we sent
+            case Frame.TYPE_ACK:
+                try {
+                    WireReader in = new WireReader(payload);
+                    MessageId id = MessageCodec.readId(in);
+                    boolean taken = in.readByte() != 0;
+                    MessageBT msg = mmUnacked.remove(id);
+                    if (msg != null && !taken) {
+                        // Dropped there before: its claimed copies come back at the end of the round
+                        mmRefusedIds.add(id);
+                    } else if (msg != null) {
+                        mmAcked.add(msg);
+                        mmAckedIds.add(id);
+                        long now = System.currentTimeMillis();
+                        mForwardLog.record(id, mmSession.address, mHistory.current(now), now);
+                        if (mmSession.address.equalsIgnoreCase(msg.getDestination())) {
+                            // Direct delivery: the message is home, no copy needs to stay anywhere
+                            learnDelivered(id, msg.getExpiresAt());
+                        } else {
+                            mStore.markForwarded(id);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode acknowledgement", e);
+                }
+                maybeEndRound();
+                return false;
+
+            case Frame.TYPE_DONE:
+                // The peer sent all its copies; the round ends once we have
+                // them and it acknowledged ours, whoever is first
+                mmPeerDone = true;
+                try {
+                    mmPeerMsgs = new WireReader(payload).readVarInt();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode done", e);
+                }
+                if (mmSelectDeferred) {
+                    // The full state would have come before DONE: go with what we have
+                    mmBeaconsMissed = false;
+                    mmDigestMissed = false;
+                    resumeSelection();
+                }
+                maybeEndRound();
+                return false;
+
+            // Process incoming message
+            case Frame.TYPE_MSG: {
+                LOG.fine(" -----#########----- RECEIVED MSG MESSAGE");
+                // Check if message is for us
+                // ...
+                // if yes display it
+                frameReceived(mmLink.getPeer(), frame);
+                mmReceivedMsgs++;
+                // if not, store the message in hashmap
+
+                try {
+                    ArrayList<MessageBT> list = MessageCodec.decode(payload);
+                    for (MessageBT messageBT: list) {
+                        LOG.fine(" Message content: " + "ID " + messageBT.getId() + " " + "Dest" +" " + messageBT.getDestination() + "Text" + " " + messageBT.getText() + " " + "Beacon ID" + " " + messageBT.getBeaconId());
+                        boolean taken = true;
+                        if (isLocalAddress(messageBT.getDestination())) {
+                            // We are the destination: deliver, never relay
+                            deliverLocally(messageBT);
+                        } else if (mDelivered.contains(messageBT.getId())) {
+                            LOG.fine(" --------------- MESSAGE ALREADY DELIVERED ---------------");
+                        } else if (mStore.putIfAbsent(messageBT)) {
+                            // The copies it carries are ours to spray now
+                            LOG.fine(" --------------- MESSAGE IS NEW ---------------");
+                            storeUtility(messageBT);
+                            mDiscovery.wake(System.currentTimeMillis());
+                            syncSessions(this);
+                        } else {
+                            // Already here: the copies it carries add to ours. Dropped or expired
+                            // before: not taken, so the sender keeps its copies
+                            taken = mStore.returnCopies(messageBT.getId(), messageBT.getCopies());
+                        }
+                        WireWriter ack = new WireWriter(17);
+                        MessageCodec.writeId(ack, messageBT.getId());
+                        ack.writeByte(taken ? 1 : 0);
+                        controlFrame(Frame.TYPE_ACK, ack.toByteArray());
+                    }
+
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode forwarded messages", e);
+                }
+                // Copies come one per frame until the sender says DONE
+                maybeEndRound();
+                return false;
+            }
+
+            case Frame.TYPE_DELIVERED:
+                try {
+                    int purged = 0;
+                    for (Map.Entry<MessageId, Long> delivered : DeliveredSet.decode(payload).entrySet()) {
+                        if (learnDelivered(delivered.getKey(), delivered.getValue())) {
+                            purged++;
+                        }
+                    }
+                    LOG.fine("Learned " + purged + " deliveries from " + mmSession.address);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode delivered IDs", e);
+                }
+                return false;
+
+            case Frame.TYPE_DIGEST:
+                try {
+                    StoreDigest digest = StoreDigest.decode(payload);
+                    mmContact.setPeerDigest(digest);
+                    mmPeerState.setDigest(mmPeerDigestVersion, digest);
+                } catch (IOException e) {
+                    // Without a digest we simply offer everything that matches
+                    LOG.log(Level.WARNING, "Unable to decode store digest", e);
+                    mmContact.setPeerDigest(StoreDigest.empty());
+                    mmPeerState.setDigest(0, null);
+                }
+                mmDigestMissed = false;
+                resumeSelection();
+                return false;
+
+            case Frame.TYPE_PROFILE:
+                try {
+                    mmContact.setPeerProfile(MobilityProfile.decode(payload));
+                } catch (IOException e) {
+                    // Fall back to matching the beacons the peer has seen
+                    LOG.log(Level.WARNING, "Unable to decode mobility profile", e);
+                    mmContact.setPeerProfile(null);
+                }
+                return false;
+
+            case Frame.TYPE_ROUTING:
+                try {
+                    WireReader in = new WireReader(payload);
+                    // State of another strategy means nothing to ours
+                    if (in.readString().equals(mmRouting.getName())) {
+                        byte[] state = new byte[in.remaining()];
+                        in.readBytes(state, 0, state.length);
+                        mmRouting.peerState(mmContact, state);
+                    }
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Unable to decode routing state", e);
+                }
+                return false;
+
+            case Frame.TYPE_TEXT:
+                // Plain chat text typed by the remote user
+                frameReceived(mmLink.getPeer(), frame);
+                return false;
+
+            default:
+                LOG.warning("Ignoring frame of unknown type " + frame.getType());
+                return false;
+            }
+        }
+
+        /**
+         * Send the queued copies one MSG frame each, in priority order,
+         * until the contact's byte budget is spent, then DONE. The first
+         * copy always goes, the estimate may be too low. Copies left in the
+         * queue or never acknowledged give their claimed copies back when
+         * the session ends.
+         */
+        private void sendQueued(TransmitQueue queue, long budget) {
+            if (sendCopies(queue, budget)) {
+                WireWriter done = new WireWriter(5);
+                done.writeVarInt(mmSentMsgs);
+                mmSentDone = controlFrame(Frame.TYPE_DONE, done.toByteArray());
+            }
+        }
+
+        /**
+         * Send queued copies one MSG frame each, in priority order, until
+         * the byte budget is spent. The first copy always goes.
+         * @return false if the link broke
+         */
+        private boolean sendCopies(TransmitQueue queue, long budget) {
+            if (mmSendStart == 0) {
+                mmSendStart = System.nanoTime();
+            }
+            long sent = 0;
+            TransmitQueue.Item item;
+            while ((item = queue.peek()) != null) {
+                byte[] payload = item.getPayload();
+                if (sent > 0 && sent + payload.length > budget) {
+                    // It stays queued, so the caller sees there is more to send
+                    break;
+                }
+                queue.poll();
+                mmUnacked.put(item.getMessage().getId(), item.getMessage());
+                // Backpressure: while the writer is behind, handle the
+                // peer's ACKs instead of piling up more copies
+                while (!mmWriter.offer(Frame.TYPE_MSG, payload)) {
+                    if (mmWriter.isClosed()) {
+                        // The read loop notices the broken link
+                        return false;
+                    }
+                    readAvailable();
+                    mmWriter.awaitSpace(payload.length, BACKPRESSURE_POLL_MILLIS);
+                }
+                sent += payload.length;
+                mmSentBytes += payload.length;
+                mRoutedBytes.addAndGet(Frame.HEADER_LENGTH + payload.length);
+                mmSentMsgs++;
+                readAvailable();
+            }
+            return true;
+        }
+
+        /**
+         * Send, with the initiator's handshake, the copies addressed to
+         * the peer itself. They need nothing from the peer's handshake and
+         * no spray copies, and are worth the most.
+         */
+        private void sendSpeculative() {
+            long now = System.currentTimeMillis();
+            ArrayList<MessageBT> direct = new ArrayList<>();
+            mmContact.selectDirect(direct, new HashSet<MessageId>());
+            TransmitQueue queue = new TransmitQueue(mmSession.address, mStore, now);
+            for (MessageBT msg : direct) {
+                if (!msg.isExpired(now)) {
+                    queue.add(msg);
+                }
+            }
+            sendCopies(queue, SPECULATIVE_BYTES);
+        }
+
+        /**
+         * Let the routing strategy pick copies for the peer, now that its
+         * handshake is in, and send them followed by DONE.
+         */
+        private void sendSelected() {
+            long now = System.currentTimeMillis();
+            mStore.expire(now);
+            long start = System.nanoTime();
+            ArrayList<MessageBT> messageList = mmRouting.select(mmContact);
+            mRoutingNanos.addAndGet(System.nanoTime() - start);
+            mRoutedContacts.incrementAndGet();
+            // Most valuable first; anything that ran out between the sweep and now stays here,
+            // and so does what already went out with the handshake
+            TransmitQueue queue = new TransmitQueue(mmSession.address, mStore, now);
+            for (MessageBT msg : messageList) {
+                if (!msg.isExpired(now) && !mmUnacked.containsKey(msg.getId())
+                        && !mmAckedIds.contains(msg.getId()) && !mmRefusedIds.contains(msg.getId())) {
+                    queue.add(msg);
+                }
+            }
+            sendQueued(queue, mBudget.budget(now - mmRoundStartedAt));
+            if (!queue.isEmpty()) {
+                // What did not fit goes in the next round, if the link stays open
+                mmNews = true;
+            }
+        }
+
+        /**
+         * Pick and send our copies if that waited for the peer's full
+         * state and it has arrived.
+         */
+        private void resumeSelection() {
+            if (!mmSelectDeferred || mmBeaconsMissed || mmDigestMissed) {
+                return;
+            }
+            mmSelectDeferred = false;
+            sendSelected();
+            maybeEndRound();
+        }
+
+        /**
+         * End the round once it is over: both sides said DONE, every copy
+         * the peer announced arrived and every copy we sent was
+         * acknowledged. The link stays open either way.
+         */
+        private void maybeEndRound() {
+            if (!mmSentDone || !mmPeerDone
+                    || mmReceivedMsgs < mmPeerMsgs || !mmUnacked.isEmpty()) {
+                return;
+            }
+            mBudget.recordTransfer(mmSentBytes, System.nanoTime() - mmSendStart);
+            endRound();
+        }
+
+        /**
+         * Start a round on the open link: send our handshake and what is
+         * addressed to the peer, as at the start of the session.
+         */
+        private void startRound() {
+            beginRound();
+            mmRoundInitiator = true;
+            writeHandshake(Frame.TYPE_GET_BEACONS);
+            sendSpeculative();
+            mmWriter.flush();
+        }
+
+        // The handshake about to go out covers all news so far
+        private void beginRound() {
+            long now = System.currentTimeMillis();
+            mmInRound = true;
+            mmNews = false;
+            mmSyncSent = false;
+            mmPeerWantsRound = false;
+            mmRoundStartedAt = now;
+            mArbiter.sessionStarting(now);
+            updateState();
+        }
+
+        /**
+         * The round is over but the link stays: give back the copies
+         * claimed for it, then start the next round if either side has
+         * news, or wait.
+         */
+        private void endRound() {
+            mmContact.releaseClaims(mmAckedIds);
+            mmSendStart = 0;
+            mmSentBytes = 0;
+            mmSentMsgs = 0;
+            mmSentDone = false;
+            mmPeerDone = false;
+            mmPeerMsgs = 0;
+            mmReceivedMsgs = 0;
+            mmRoundInitiator = false;
+            mmHandshakeSent = false;
+            mmBeaconsMissed = false;
+            mmDigestMissed = false;
+            mmSelectDeferred = false;
+            mmIdleSince = System.currentTimeMillis();
+            if (mmFirstRoundEndedAt == 0) {
+                mmFirstRoundEndedAt = mmIdleSince;
+            }
+            mmInRound = false;
+            updateState();
+            if (mmPeerWantsRound && (mmSession.initiator || !mmSyncSent)) {
+                startRound();
+            } else if (mmNews) {
+                sync();
+            }
+        }
+
+        /**
+         * Something the peer should hear about changed, e.g. a new message
+         * or beacon. Between rounds the peer is asked for one with SYNC,
+         * during a round that happens when it ends. Called from any
+         * thread, the session thread does it.
+         */
+        public void requestSync() {
+            mmSyncRequested = true;
+            mmReader.wake();
+        }
+
+        private void sync() {
+            mmNews = true;
+            if (!mmInRound && !mmSyncSent) {
+                mmSyncSent = controlFrame(Frame.TYPE_SYNC, new byte[0]);
+                mmWriter.flush();
+            }
+        }
+
+        /**
+         * @return true if the link is open between rounds
+         */
+        public boolean isIdle() {
+            return !mmInRound;
+        }
+
+        public long getIdleSince() {
+            return mmIdleSince;
+        }
+
+        /**
+         * @return true if the peer keeps the link open but has not been
+         *         heard from for the link timeout
+         */
+        public boolean isSilent(long now) {
+            return now - mmLastReadAt > LINK_TIMEOUT_MILLIS;
+        }
+
+        /**
+         * Send a keepalive if nothing went out for a while. Called from
+         * the timer, the session thread does it.
+         */
+        public void keepAlive() {
+            mmKeepAliveRequested = true;
+            mmReader.wake();
+        }
+
+        private void sendKeepAlive(long now) {
+            if (now - mmLastWriteAt >= KEEPALIVE_MILLIS) {
+                controlFrame(Frame.TYPE_KEEPALIVE, new byte[0]);
+                mmWriter.flush();
+            }
+        }
+
+        /**
+         * Send our half of the handshake: what we hold, where we go, the
+         * state of the routing strategy and the beacons we see, the
+         * latter in a frame of the given type. A peer met before gets
+         * what changed since the versions it holds.
+         */
+        private void writeHandshake(int beaconsType) {
+            mmBeacons = mHistory.topBeacons(HANDSHAKE_BEACONS, System.currentTimeMillis());
+            mmDigestKeys = mStore.digestKeys();
+            Arrays.sort(mmDigestKeys);
+            mmBeaconsVersion = mPeerCache.beaconsVersion(mmBeacons);
+            mmDigestVersion = mPeerCache.digestVersion(mmDigestKeys);
+
+            // Version of the digest that follows, and of the peer's state we hold
+            WireWriter hello = new WireWriter(40);
+            hello.writeVarInt(PROTOCOL_VERSION);
+            hello.writeVarLong(mmDigestVersion);
+            hello.writeVarLong(mmPeerState.getBeaconsVersion());
+            hello.writeVarLong(mmPeerState.getDigestVersion());
+            writeFrame(Frame.TYPE_HELLO, hello.toByteArray());
+            // Anti-packets first, so the peer purges before it picks anything for us
+            writeDelivered();
+            writeDigest(mmDigestKeys);
+            writeFrame(Frame.TYPE_PROFILE, encodeProfile());
+            byte[] state = mmRouting.encodeState(mmContact);
+            if (state != null) {
+                WireWriter out = new WireWriter(state.length + 16);
+                out.writeString(mmRouting.getName());
+                out.writeBytes(state, 0, state.length);
+                writeFrame(Frame.TYPE_ROUTING, out.toByteArray());
+                mRoutedBytes.addAndGet(Frame.HEADER_LENGTH + out.length());
+            }
+            writeBeacons(beaconsType, mmBeacons);
+            mmHandshakeSent = true;
+        }
+
+        /**
+         * Send the deliveries the peer has not heard about from us, or
+         * the most recent ones if it holds nothing of ours.
+         */
+        private void writeDelivered() {
+            long added = mDelivered.getAddedCount();
+            long since = mmPeerState.getDeliveredSent();
+            if (added > since && mDelivered.size() > 0) {
+                controlFrame(Frame.TYPE_DELIVERED, mDelivered.encodeSince(since, HANDSHAKE_DELIVERED));
+            }
+            mmPeerState.setDeliveredSent(added);
+        }
+
+        /**
+         * Send our digest, as a delta if the peer holds a version we still
+         * have and the delta is the smaller. Deltas onto a Bloom filter
+         * leave removed IDs behind and overfill it, so after a few of them
+         * a full one goes instead.
+         */
+        private void writeDigest(long[] keys) {
+            byte[] full = StoreDigest.encode(keys);
+            long base = mmPeerState.getDigestSent();
+            long[] from = base != 0 ? mPeerCache.digestAt(base) : null;
+            if (from != null) {
+                StoreDigest.Delta delta = StoreDigest.diff(base, from, mmDigestVersion, keys);
+                byte[] payload = delta.encode();
+                if (payload.length < full.length && mmPeerState.digestTakes(delta)) {
+                    writeFrame(Frame.TYPE_DIGEST_DELTA, payload);
+                    mmPeerState.setDigestSent(mmDigestVersion);
+                    mmPeerState.addDigestDelta(delta);
+                    return;
+                }
+            }
+            writeFrame(Frame.TYPE_DIGEST, full);
+            mmPeerState.setDigestSent(mmDigestVersion);
+            mmPeerState.setDigestFull(keys.length);
+        }
+
+        /**
+         * Send our beacons as a delta from the version the peer holds, or
+         * in full, then the frame of the given type that ends the
+         * handshake.
+         */
+        private void writeBeacons(int type, List<String> beacons) {
+            long base = mmPeerState.getBeaconsSent();
+            List<String> from = base == 0 ? null : mPeerCache.beaconsAt(base);
+            writeFrame(Frame.TYPE_BEACONS_DELTA,
+                    encodeBeaconsDelta(from == null ? 0 : base, from, beacons));
+            writeFrame(type, new byte[0]);
+            mmPeerState.setBeaconsSent(mmBeaconsVersion);
+        }
+
+        /**
+         * The peer told us in its HELLO which versions of our state it
+         * holds. If our handshake of this round already went out built on
+         * other versions, its deltas were lost on the peer: send the
+         * beacons and digest of this round again in full. The peer waits
+         * for them before it picks anything for us.
+         */
+        private void peerHolds(long beacons, long digest) {
+            if (beacons == 0 && digest == 0) {
+                // The peer keeps nothing of ours, not even what we told it was delivered
+                mmPeerState.setDeliveredSent(0);
+            }
+            boolean missed = mmHandshakeSent
+                    && (beacons != mmPeerState.getBeaconsSent() || digest != mmPeerState.getDigestSent());
+            mmPeerState.setBeaconsSent(beacons);
+            mmPeerState.setDigestSent(digest);
+            if (!missed) {
+                return;
+            }
+            LOG.fine("Delta handshake missed on " + mmSession.address + ", sending it in full");
+            if (beacons != mmBeaconsVersion) {
+                writeFrame(Frame.TYPE_BEACONS_DELTA, encodeBeaconsDelta(0, null, mmBeacons));
+                mmPeerState.setBeaconsSent(mmBeaconsVersion);
+            }
+            if (digest != mmDigestVersion) {
+                writeFrame(Frame.TYPE_DIGEST, StoreDigest.encode(mmDigestKeys));
+                mmPeerState.setDigestSent(mmDigestVersion);
+                mmPeerState.setDigestFull(mmDigestKeys.length);
+            }
+        }
+
+        /**
+         * Build the payload of a BEACONS-DELTA frame: the version the
+         * changes apply to, 0 for none, the version they lead to, then the
+         * beacons added and those removed.
+         */
+        private byte[] encodeBeaconsDelta(long base, List<String> from, List<String> to) {
+            ArrayList<String> added = new ArrayList<>(to);
+            ArrayList<String> removed = new ArrayList<>();
+            if (from != null) {
+                added.removeAll(from);
+                removed.addAll(from);
+                removed.removeAll(to);
+            }
+            WireWriter out = new WireWriter(24 + (added.size() + removed.size()) * 7);
+            out.writeVarLong(base);
+            out.writeVarLong(mmBeaconsVersion);
+            writeBeaconList(out, added);
+            writeBeaconList(out, removed);
+            return out.toByteArray();
+        }
+
+        private void writeBeaconList(WireWriter out, List<String> beacons) {
+            out.writeVarInt(beacons.size());
+            for (String beacon : beacons) {
+                boolean mac = WireWriter.isMac(beacon);
+                out.writeByte(mac ? 1 : 0);
+                if (mac) {
+                    out.writeMac(beacon);
+                } else {
+                    out.writeString(beacon);
+                }
+            }
+        }
+
+        private ArrayList<String> readBeaconList(WireReader in) throws IOException {
+            int count = in.readVarInt();
+            if (count > in.remaining()) {
+                throw new IOException("Beacon count " + count + " exceeds payload");
+            }
+            ArrayList<String> beacons = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                beacons.add(in.readByte() == 1 ? in.readMac() : in.readString());
+            }
+            return beacons;
+        }
+
+        /**
+         * Apply a BEACONS-DELTA frame to the peer's beacons we hold. One
+         * made for another version is dropped, and our HELLO asks for the
+         * full list.
+         * @return false if the delta did not apply
+         */
+        private boolean applyBeaconsDelta(byte[] payload) throws IOException {
+            WireReader in = new WireReader(payload);
+            long base = in.readVarLong();
+            long version = in.readVarLong();
+            ArrayList<String> added = readBeaconList(in);
+            ArrayList<String> removed = readBeaconList(in);
+            List<String> held = mmPeerState.getBeacons();
+            if (base != 0 && (held == null || mmPeerState.getBeaconsVersion() != base)) {
+                mmPeerState.setBeacons(0, null);
+                return false;
+            }
+            LinkedHashSet<String> beacons = new LinkedHashSet<>();
+            if (base != 0) {
+                beacons.addAll(held);
+                beacons.removeAll(removed);
+            }
+            beacons.addAll(added);
+            ArrayList<String> list = new ArrayList<>(beacons);
+            mmPeerState.setBeacons(version, list);
+            mmContact.setPeerBeacons(list);
+            return true;
+        }
+
+        /**
+         * Build the payload of a PROFILE frame: our closeness to the beacons we visit most.
+         */
+        private byte[] encodeProfile() {
+            return getProfile().encode(System.currentTimeMillis(), PROFILE_BEACONS);
+        }
+
+
+        /**
+         * Queue a single frame for the writer, waiting for room if it is
+         * behind. It goes out at the next flush point or full batch.
+         * @param type  One of the Frame.TYPE_* constants
+         * @param payload  The frame payload
+         * @return false if the frame could not be queued
+         */
+        public boolean writeFrame(int type, byte[] payload) {
+            return mmWriter.write(type, payload);
+        }
+
+        /**
+         * Queue a single frame and flush, without blocking.
+         * @return false if the writer's queue is full or the link is gone
+         */
+        public boolean offerFrame(int type, byte[] payload) {
+            if (!mmWriter.offer(type, payload)) {
+                return false;
+            }
+            mmWriter.flush();
+            return true;
+        }
+
+        /**
+         * Queue an ACK, DONE, DELIVERED, SYNC or KEEPALIVE frame without
+         * blocking, even while the writer is behind with our copies, see
+         * {@link FrameWriter#writeControl}.
+         * @return false if the link is gone
+         */
+        private boolean controlFrame(int type, byte[] payload) {
+            return mmWriter.writeControl(type, payload);
+        }
+
+        public boolean isWriteStalled(long now) {
+            return mmWriter.isStalled(now);
+        }
+
+        @Override
+        public void onFrameWritten(Frame frame) {
+            long now = System.currentTimeMillis();
+            mmLastWriteAt = now;
+            if (frame.getType() == Frame.TYPE_KEEPALIVE) {
+                // Neither a transfer nor anything to show
+                return;
+            }
+            mArbiter.transferActivity(now);
+            // Share the sent frame with the listeners
+            for (NodeListener listener : mListeners) {
+                listener.onFrameSent(mmLink.getPeer(), frame.getType(), frame.getPayload());
+            }
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            // The read loop notices the closed link and reports it
+            cancel();
+        }
+
+        /**
+         * Close the link without reporting it as lost.
+         */
+        public void release() {
+            mmReleased = true;
+            cancel();
+        }
+
+        public void cancel() {
+            mmWriter.close();
+            try {
+                mmLink.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "close() of connected link failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Binary Spray-and-Wait without any notion of place: a message with more
+ * than one copy hands half of them to every peer it meets that does not
+ * hold it yet, a message down to its last copy waits for its destination.
+ */
+public class SprayAndWaitRouting implements RoutingStrategy {
+
+    public static final String NAME = "spray-and-wait";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void contactUp(Contact contact) {
+    }
+
+    @Override
+    public byte[] encodeState(Contact contact) {
+        return null;
+    }
+
+    @Override
+    public void peerState(Contact contact, byte[] payload) {
+    }
+
+    @Override
+    public ArrayList<MessageBT> select(Contact contact) {
+        ArrayList<MessageBT> selected = new ArrayList<>();
+        HashSet<MessageId> chosen = new HashSet<>();
+        contact.selectDirect(selected, chosen);
+        spray(contact, contact.getStore().sprayable(), selected, chosen);
+        return selected;
+    }
+
+    /**
+     * Claim half of the copies of each candidate the peer does not hold.
+     */
+    static void spray(Contact contact, List<MessageBT> candidates,
+                      ArrayList<MessageBT> selected, HashSet<MessageId> chosen) {
+        for (MessageBT msg : candidates) {
+            if (chosen.contains(msg.getId()) || contact.peerMightHave(msg.getId())) {
+                continue;
+            }
+            // Claim the copies, another session may be spraying the same message
+            int copies = contact.claimCopies(msg.getId());
+            if (copies > 0) {
+                chosen.add(msg.getId());
+                selected.add(Contact.handOff(msg, copies));
+            }
+        }
+    }
+
+    @Override
+    public void transferred(Contact contact, List<MessageBT> sent) {
+    }
+
+    @Override
+    public void contactDown(Contact contact) {
+    }
+
+    @Override
+    public double utility(MessageBT message, long time) {
+        // Every message is worth the same here: age and size decide
+        return 0;
+    }
+
+    @Override
+    public long getStateBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact summary of the message IDs a node holds, exchanged at the start
+ * of a handshake so the sender can leave out anything the peer already has.
+ *
+ * Small stores are summarised exactly as a sorted, delta-encoded ID list.
+ * Above {@link #BLOOM_THRESHOLD} IDs a Bloom filter is sent instead; a false
+ * positive only means one message waits for the next contact.
+ *
+ * Message IDs enter the digest as their 64-bit {@link MessageId#hash64()}.
+ *
+ * A peer that holds an earlier version can be sent a delta instead: the
+ * IDs added and removed since, see {@link #encodeDelta}. A Bloom filter
+ * only takes the additions; removed IDs stay in it as false positives
+ * until the next full digest, which {@link #bloomHolds} tells the holder
+ * when to send.
+ */
+public class StoreDigest {
+
+    // Number of IDs above which the exact list is replaced by a Bloom filter
+    public static final int BLOOM_THRESHOLD = 512;
+
+    // About 0.8% false positives with 10 bits per ID and 7 probes
+    private static final int BLOOM_BITS_PER_ID = 10;
+    private static final int BLOOM_HASHES = 7;
+    // Deltas a Bloom filter takes before a full digest replaces it
+    public static final int BLOOM_MAX_DELTAS = 16;
+
+    private static final int KIND_LIST = 0;
+    private static final int KIND_BLOOM = 1;
+
+    private static final StoreDigest EMPTY = new StoreDigest(new long[0], null, 0);
+
+    // Exactly one of these is set
+    private final long[] mSortedIds;
+    private final long[] mBloomBits;
+    private final int mBloomBitCount;
+
+    private StoreDigest(long[] sortedIds, long[] bloomBits, int bloomBitCount) {
+        mSortedIds = sortedIds;
+        mBloomBits = bloomBits;
+        mBloomBitCount = bloomBitCount;
+    }
+
+    /**
+     * The changes between two versions of a digest, as decoded from a
+     * DIGEST-DELTA frame.
+     */
+    public static class Delta {
+        private final long mBase;
+        private final long mVersion;
+        private final long[] mAdded;
+        private final long[] mRemoved;
+
+        Delta(long base, long version, long[] added, long[] removed) {
+            mBase = base;
+            mVersion = version;
+            mAdded = added;
+            mRemoved = removed;
+        }
+
+        /** Version the changes apply to. */
+        public long getBase() {
+            return mBase;
+        }
+
+        /** Version the changes lead to. */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public int size() {
+            return mAdded.length + mRemoved.length;
+        }
+
+        public int getAddedCount() {
+            return mAdded.length;
+        }
+
+        public int getRemovedCount() {
+            return mRemoved.length;
+        }
+
+        /**
+         * @return the payload of a DIGEST-DELTA frame
+         */
+        public byte[] encode() {
+            WireWriter out = new WireWriter(24 + size() * 9);
+            out.writeVarLong(mBase);
+            out.writeVarLong(mVersion);
+            writeSorted(out, mAdded);
+            writeSorted(out, mRemoved);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Digest used when the peer did not send one: it holds nothing.
+     */
+    public static StoreDigest empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return true if the peer definitely or probably holds the message
+     */
+    public boolean mightContain(MessageId id) {
+        return mightContain(id.hash64());
+    }
+
+    /**
+     * @return true if the peer definitely or probably holds the ID
+     */
+    public boolean mightContain(long id) {
+        if (mSortedIds != null) {
+            return Arrays.binarySearch(mSortedIds, id) >= 0;
+        }
+        long hash = mix(id);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBloomBitCount;
+            if ((mBloomBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encode the digest of a set of message IDs.
+     * @param ids  The IDs held locally, in any order; the array is sorted in place
+     */
+    public static byte[] encode(long[] ids) {
+        WireWriter out = new WireWriter(16 + ids.length * 2);
+        if (ids.length <= BLOOM_THRESHOLD) {
+            Arrays.sort(ids);
+            out.writeByte(KIND_LIST);
+            writeSorted(out, ids);
+        } else {
+            int bitCount = ids.length * BLOOM_BITS_PER_ID;
+            long[] bits = new long[(bitCount + 63) >>> 6];
+            for (long id : ids) {
+                long hash = mix(id);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32);
+                for (int i = 0; i < BLOOM_HASHES; i++) {
+                    int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+            out.writeByte(KIND_BLOOM);
+            out.writeVarInt(bitCount);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static StoreDigest decode(byte[] payload) throws IOException {
+        WireReader in = new WireReader(payload);
+        int kind = in.readByte();
+        if (kind == KIND_LIST) {
+            return new StoreDigest(readSorted(in), null, 0);
+        } else if (kind == KIND_BLOOM) {
+            int bitCount = in.readVarInt();
+            if (bitCount == 0 || (((long) bitCount + 63) >>> 6) * 8 > in.remaining()) {
+                throw new IOException("Invalid Bloom filter size " + bitCount);
+            }
+            long[] bits = new long[(bitCount + 63) >>> 6];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new StoreDigest(null, bits, bitCount);
+        }
+        throw new IOException("Unknown digest kind " + kind);
+    }
+
+    /**
+     * Encode the changes from one version of the IDs held to another.
+     * @param base  Version the peer holds
+     * @param from  The IDs of that version, sorted
+     * @param version  Version of the IDs held now
+     * @param to  The IDs held now, sorted
+     */
+    public static byte[] encodeDelta(long base, long[] from, long version, long[] to) {
+        return diff(base, from, version, to).encode();
+    }
+
+    /**
+     * The changes from one version of the IDs held to another, with the
+     * same parameters as {@link #encodeDelta}.
+     */
+    public static Delta diff(long base, long[] from, long version, long[] to) {
+        long[] added = new long[to.length];
+        long[] removed = new long[from.length];
+        int addedCount = 0;
+        int removedCount = 0;
+        int i = 0;
+        int j = 0;
+        // Both sorted: walk them side by side
+        while (i < from.length || j < to.length) {
+            if (j == to.length || (i < from.length && from[i] < to[j])) {
+                removed[removedCount++] = from[i++];
+            } else if (i == from.length || to[j] < from[i]) {
+                added[addedCount++] = to[j++];
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return new Delta(base, version, Arrays.copyOf(added, addedCount), Arrays.copyOf(removed, removedCount));
+    }
+
+    public static Delta decodeDelta(byte[] payload) throws IOException {
+        WireReader in = new WireReader(payload);
+        long base = in.readVarLong();
+        long version = in.readVarLong();
+        long[] added = readSorted(in);
+        long[] removed = readSorted(in);
+        return new Delta(base, version, added, removed);
+    }
+
+    /**
+     * @return this digest with the changes applied
+     */
+    public StoreDigest apply(Delta delta) {
+        if (mSortedIds == null) {
+            long[] bits = mBloomBits.clone();
+            for (long id : delta.mAdded) {
+                long hash = mix(id);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32);
+                for (int i = 0; i < BLOOM_HASHES; i++) {
+                    int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBloomBitCount;
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+            return new StoreDigest(null, bits, mBloomBitCount);
+        }
+        long[] ids = new long[mSortedIds.length + delta.mAdded.length];
+        int count = 0;
+        int j = 0;
+        for (long id : mSortedIds) {
+            while (j < delta.mAdded.length && delta.mAdded[j] < id) {
+                ids[count++] = delta.mAdded[j++];
+            }
+            if (j < delta.mAdded.length && delta.mAdded[j] == id) {
+                j++;
+            }
+            if (Arrays.binarySearch(delta.mRemoved, id) < 0) {
+                ids[count++] = id;
+            }
+        }
+        while (j < delta.mAdded.length) {
+            ids[count++] = delta.mAdded[j++];
+        }
+        return new StoreDigest(Arrays.copyOf(ids, count), null, 0);
+    }
+
+    /**
+     * Whether a peer's Bloom filter still serves with the changes sent
+     * onto it since it went out in full. Every removed ID is left behind
+     * as a false positive, so they may add up to about the filter's own
+     * rate; added IDs fill it past the size it was made for, which a
+     * quarter more IDs roughly triples the rate of.
+     * @param ids  IDs the filter was made for
+     * @param deltas  Deltas sent onto it, counting the next one
+     * @param added  IDs those deltas added
+     * @param removed  IDs those deltas removed
+     * @return false if a full digest should go instead
+     */
+    public static boolean bloomHolds(int ids, int deltas, int added, int removed) {
+        return deltas <= BLOOM_MAX_DELTAS && removed <= ids / 100 && added <= ids / 4;
+    }
+
+    /**
+     * @return true if this digest is a Bloom filter rather than an exact list
+     */
+    public boolean isBloom() {
+        return mSortedIds == null;
+    }
+
+    // A count, then sorted values as differences, wrapping is undone on decode
+    private static void writeSorted(WireWriter out, long[] sorted) {
+        out.writeVarInt(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0) {
+                out.writeZigZag(sorted[0]);
+            } else {
+                out.writeVarLong(sorted[i] - sorted[i - 1]);
+            }
+        }
+    }
+
+    private static long[] readSorted(WireReader in) throws IOException {
+        int count = in.readVarInt();
+        if (count > in.remaining()) {
+            throw new IOException("Digest count " + count + " exceeds payload");
+        }
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                ids[0] = in.readZigZag();
+            } else {
+                ids[i] = ids[i - 1] + in.readVarLong();
+            }
+        }
+        return ids;
+    }
+
+    // 64-bit finalizer from SplitMix64, spreads sequential IDs over the filter
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.BluetoothChat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over TCP, for running nodes on a plain JVM and for
+ * gateways between SpotNet islands. Addresses have the form "host:port".
+ *
+ * TCP source ports say nothing about who is calling, so right after the
+ * connection is made the caller sends the address it listens on. That
+ * address is what the other side sees as {@link Peer#getAddress()}.
+ */
+public class TcpTransport implements Transport {
+
+    private final String mHost;
+    private volatile int mPort;
+
+    /**
+     * @param host  Interface to listen on and to announce, e.g. "127.0.0.1"
+     * @param port  Port to listen on, 0 picks a free one at listen()
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public LinkListener listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(mHost), mPort));
+        mPort = serverSocket.getLocalPort();
+        return new LinkListener() {
+            @Override
+            public Link accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                try {
+                    socket.setTcpNoDelay(true);
+                    String address = new DataInputStream(socket.getInputStream()).readUTF();
+                    if (address.isEmpty()) {
+                        address = socket.getRemoteSocketAddress().toString();
+                    }
+                    return new TcpLink(socket, address, true);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Link createLink(String address) throws IOException {
+        return new TcpLink(new Socket(), address, false);
+    }
+
+    private class TcpLink implements Link, Peer {
+        private final Socket mmSocket;
+        private final String mmAddress;
+        private final boolean mmConnected;
+
+        TcpLink(Socket socket, String address, boolean connected) {
+            mmSocket = socket;
+            mmAddress = address;
+            mmConnected = connected;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (mmConnected) {
+                return;
+            }
+            int colon = mmAddress.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("Not a host:port address: " + mmAddress);
+            }
+            int port;
+            try {
+                port = Integer.parseInt(mmAddress.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Not a host:port address: " + mmAddress);
+            }
+            mmSocket.connect(new InetSocketAddress(mmAddress.substring(0, colon), port));
+            mmSocket.setTcpNoDelay(true);
+
+            // Tell the other side who we are
+            DataOutputStream out = new DataOutputStream(mmSocket.getOutputStream());
+            out.writeUTF(getLocalAddress());
+            out.flush();
+        }
+
+        @Override
+        public Peer getPeer() {
+            return this;
+        }
+
+        @Override
+        public String getAddress() {
+            return mmAddress;
+        }
+
+        @Override
+        public String getName() {
+            return mmAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.android.BluetoothChat;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Hierarchical timer wheel: deadlines for keys, cheap to add, cancel and
+ * expire however many there are.
+ *
+ * Time is cut in ticks. The first level has a slot per tick for the next
+ * {@link #SLOTS} ticks, every further level has slots {@link #SLOTS} times
+ * wider. A deadline goes into the finest level that reaches it, in the
+ * slot of its tick at that level. When the first level wraps around, the
+ * next slot of the level above is emptied into the finer levels, and so
+ * on up. Scheduling and cancelling are O(1), advancing is O(1) per tick
+ * plus the cascades, which move each deadline at most once per level.
+ * Deadlines beyond the top level wait in its farthest slot and are
+ * placed again when it cascades.
+ *
+ * Deadlines fire on the first tick boundary at or after them, so at most
+ * one tick late and never early. Not thread-safe; callers lock.
+ */
+public class TimerWheel<K> {
+
+    public static final int SLOT_BITS = 6;
+    public static final int SLOTS = 1 << SLOT_BITS;
+    public static final int LEVELS = 4;
+
+    private static final int MASK = SLOTS - 1;
+
+    private static class Node<K> {
+        K key;
+        long tick;
+        Node<K> prev;
+        Node<K> next;
+    }
+
+    // Each slot is a circular list headed by a sentinel
+    private final Node<K>[][] mSlots;
+    private final HashMap<K, Node<K>> mNodes = new HashMap<>();
+    private final long mTickMillis;
+    private long mCurrentTick;
+
+    /**
+     * @param tickMillis  Length of a tick in milliseconds
+     * @param now  Current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, long now) {
+        mTickMillis = tickMillis;
+        mCurrentTick = now / tickMillis;
+        mSlots = newSlots();
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Node<K> sentinel = new Node<>();
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                mSlots[level][slot] = sentinel;
+            }
+        }
+    }
+
+    // Java cannot create an array of a generic type, only a raw one
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <K> Node<K>[][] newSlots() {
+        return new Node[LEVELS][SLOTS];
+    }
+
+    /**
+     * Set the deadline of a key, replacing any deadline it had.
+     * @param deadline  Milliseconds, on the clock given to {@link #advance}
+     */
+    public void schedule(K key, long deadline) {
+        Node<K> node = mNodes.get(key);
+        if (node == null) {
+            node = new Node<>();
+            node.key = key;
+            mNodes.put(key, node);
+        } else {
+            unlink(node);
+        }
+        // Round up, a deadline never fires early; one already past fires on the next tick
+        node.tick = Math.max(mCurrentTick + 1, ceilDiv(deadline, mTickMillis));
+        place(node);
+    }
+
+    /**
+     * @return true if the key had a deadline
+     */
+    public boolean cancel(K key) {
+        Node<K> node = mNodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    public boolean contains(K key) {
+        return mNodes.containsKey(key);
+    }
+
+    public int size() {
+        return mNodes.size();
+    }
+
+    /**
+     * Move the wheel to a time and collect the keys whose deadline passed.
+     * Their deadlines are dropped.
+     * @param now  Current time in milliseconds
+     * @param expired  Receives the expired keys
+     * @return the number of keys expired
+     */
+    public int advance(long now, Collection<K> expired) {
+        long target = now / mTickMillis;
+        int count = 0;
+        while (mCurrentTick < target) {
+            if (mNodes.isEmpty()) {
+                // Nothing can fire, skip the empty ticks
+                mCurrentTick = target;
+                break;
+            }
+            mCurrentTick++;
+            if ((mCurrentTick & MASK) == 0) {
+                cascade(1);
+            }
+            Node<K> sentinel = mSlots[0][(int) (mCurrentTick & MASK)];
+            while (sentinel.next != sentinel) {
+                Node<K> node = sentinel.next;
+                unlink(node);
+                mNodes.remove(node.key);
+                expired.add(node.key);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Empty the current slot of a level into the finer ones, after the
+    // coarser levels if this one wrapped around too
+    private void cascade(int level) {
+        int slot = (int) ((mCurrentTick >>> (SLOT_BITS * level)) & MASK);
+        if (slot == 0 && level + 1 < LEVELS) {
+            cascade(level + 1);
+        }
+        Node<K> sentinel = mSlots[level][slot];
+        Node<K> node = sentinel.next;
+        sentinel.prev = sentinel;
+        sentinel.next = sentinel;
+        while (node != sentinel) {
+            Node<K> next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(Node<K> node) {
+        long delta = node.tick - mCurrentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        long tick = node.tick;
+        long reach = 1L << (SLOT_BITS * LEVELS);
+        if (delta >= reach) {
+            // Too far out: park in the last slot the top level reaches
+            tick = mCurrentTick + reach - 1;
+        }
+        Node<K> sentinel = mSlots[level][(int) ((tick >>> (SLOT_BITS * level)) & MASK)];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static <K> void unlink(Node<K> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        long q = a / b;
+        return q * b < a ? q + 1 : q;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.BluetoothChat;
+
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * The copies picked for one contact, most valuable first, each already
+ * encoded as the payload of its own MSG frame.
+ *
+ * A copy is worth more if it is addressed to the peer itself, if the
+ * routing layer gives its message a high utility
+ * ({@link MessageStore#setUtility(MessageId, double)}) and the older it
+ * is relative to its lifetime, since it has fewer chances left. What it
+ * is worth is divided by its size, so that within a byte budget small
+ * valuable messages come before large ones.
+ */
+public class TransmitQueue {
+
+    // Final delivery beats any amount of forwarding utility
+    public static final double DIRECT_WEIGHT = 4;
+
+    /**
+     * A copy waiting to go out.
+     */
+    public static class Item implements Comparable<Item> {
+        private final MessageBT mMessage;
+        private final byte[] mPayload;
+        private final double mPriority;
+
+        Item(MessageBT message, byte[] payload, double priority) {
+            mMessage = message;
+            mPayload = payload;
+            mPriority = priority;
+        }
+
+        public MessageBT getMessage() {
+            return mMessage;
+        }
+
+        /** Payload of the MSG frame carrying this copy alone. */
+        public byte[] getPayload() {
+            return mPayload;
+        }
+
+        public double getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            int c = Double.compare(other.mPriority, mPriority);
+            return c != 0 ? c : mMessage.getId().compareTo(other.mMessage.getId());
+        }
+    }
+
+    private final PriorityQueue<Item> mQueue = new PriorityQueue<>();
+    private final String mPeerAddress;
+    private final MessageStore mStore;
+    private final long mNow;
+
+    /**
+     * @param peerAddress  Address of the peer the copies go to
+     * @param store  Store holding the messages, for their utility
+     * @param now  Current time in milliseconds since the epoch
+     */
+    public TransmitQueue(String peerAddress, MessageStore store, long now) {
+        mPeerAddress = peerAddress;
+        mStore = store;
+        mNow = now;
+    }
+
+    /**
+     * Queue a copy selected by the routing strategy.
+     */
+    public void add(MessageBT copy) {
+        byte[] payload = MessageCodec.encode(Collections.singletonList(copy));
+        mQueue.add(new Item(copy, payload, priority(copy, payload.length)));
+    }
+
+    private double priority(MessageBT copy, int bytes) {
+        double weight = mPeerAddress.equalsIgnoreCase(copy.getDestination()) ? DIRECT_WEIGHT : 1;
+        weight *= 1 + Math.max(0, mStore.getUtility(copy.getId()));
+        long ttl = Math.max(1, copy.getTtl());
+        double age = Math.min(1, Math.max(0, (double) (mNow - copy.getCreatedAt()) / ttl));
+        weight *= 1 + age;
+        return weight / bytes;
+    }
+
+    /**
+     * @return the most valuable copy left, still queued, or null
+     */
+    public Item peek() {
+        return mQueue.peek();
+    }
+
+    /**
+     * @return the most valuable copy left, or null
+     */
+    public Item poll() {
+        return mQueue.poll();
+    }
+
+    public boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    public int size() {
+        return mQueue.size();
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * The medium the exchange protocol runs over. RFCOMM is what the app
+ * uses on phones; the TCP and in-memory implementations let the same
+ * protocol run on a plain JVM.
+ */
+public interface Transport {
+
+    /**
+     * Address other nodes use to reach this one, may be null if unknown.
+     */
+    String getLocalAddress();
+
+    /**
+     * Start accepting incoming links.
+     */
+    LinkListener listen() throws IOException;
+
+    /**
+     * Create an unconnected link to a remote node.
+     * @param address  Address of the remote node in this transport's format
+     */
+    Link createLink(String address) throws IOException;
+}
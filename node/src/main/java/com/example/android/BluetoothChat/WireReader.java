@@ -0,0 +1,108 @@
+package com.example.android.BluetoothChat;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the encodings produced by {@link WireWriter} from a byte array.
+ * Truncated or malformed input is reported as an IOException so callers
+ * can treat it like any other broken connection.
+ */
+public class WireReader {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] mBuffer;
+    private final int mEnd;
+    private int mPosition;
+
+    public WireReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public WireReader(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    public void readBytes(byte[] target, int offset, int length) throws IOException {
+        require(length);
+        System.arraycopy(mBuffer, mPosition, target, offset, length);
+        mPosition += length;
+    }
+
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Varint out of int range: " + value);
+        }
+        return (int) value;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public long readZigZag() throws IOException {
+        long raw = readVarLong();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (mBuffer[mPosition++] & 0xff);
+        }
+        return value;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        require(length);
+        String value = new String(mBuffer, mPosition, length, WireWriter.UTF_8);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Read six octets and format them as "AA:BB:CC:DD:EE:FF".
+     */
+    public String readMac() throws IOException {
+        require(6);
+        char[] mac = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = mBuffer[mPosition++] & 0xff;
+            mac[i * 3] = HEX[b >>> 4];
+            mac[i * 3 + 1] = HEX[b & 0x0f];
+            if (i < 5) {
+                mac[i * 3 + 2] = ':';
+            }
+        }
+        return new String(mac);
+    }
+
+    public int remaining() {
+        return mEnd - mPosition;
+    }
+
+    private void require(int count) throws IOException {
+        if (count < 0 || mEnd - mPosition < count) {
+            throw new EOFException("Need " + count + " bytes, " + (mEnd - mPosition) + " left");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte sink with the primitive encodings used by the exchange
+ * protocol: unsigned LEB128 varints, length-prefixed UTF-8 strings and
+ * 6-byte Bluetooth addresses.
+ */
+public class WireWriter {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public WireWriter() {
+        this(256);
+    }
+
+    public WireWriter(int initialCapacity) {
+        mBuffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public WireWriter writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) value;
+        return this;
+    }
+
+    public WireWriter writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, mBuffer, mLength, length);
+        mLength += length;
+        return this;
+    }
+
+    /**
+     * Write a non-negative int as an unsigned varint.
+     */
+    public WireWriter writeVarInt(int value) {
+        return writeVarLong(value & 0xffffffffL);
+    }
+
+    /**
+     * Write a long as an unsigned varint, seven bits per byte.
+     */
+    public WireWriter writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mLength++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Write a signed value zigzag-encoded so small negatives stay short.
+     */
+    public WireWriter writeZigZag(long value) {
+        return writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public WireWriter writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mBuffer[mLength++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    /**
+     * Write a varint byte count followed by the UTF-8 bytes of the string.
+     */
+    public WireWriter writeString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(bytes.length);
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write the six octets of an address accepted by {@link #isMac(String)}.
+     */
+    public WireWriter writeMac(String mac) {
+        ensureCapacity(6);
+        for (int i = 0; i < 6; i++) {
+            int hi = Character.digit(mac.charAt(i * 3), 16);
+            int lo = Character.digit(mac.charAt(i * 3 + 1), 16);
+            mBuffer[mLength++] = (byte) ((hi << 4) | lo);
+        }
+        return this;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    /**
+     * Check whether a string is a Bluetooth address in the canonical
+     * "AA:BB:CC:DD:EE:FF" form used by the Android stack, which is the
+     * only form that survives a 6-byte round trip unchanged.
+     */
+    public static boolean isMac(String value) {
+        if (value == null || value.length() != 17) {
+            return false;
+        }
+        for (int i = 0; i < 17; i++) {
+            char c = value.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            int capacity = mBuffer.length;
+            while (capacity < mLength + extra) {
+                capacity *= 2;
+            }
+            mBuffer = Arrays.copyOf(mBuffer, capacity);
+        }
+    }
+}
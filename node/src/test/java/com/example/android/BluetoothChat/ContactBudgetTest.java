@@ -0,0 +1,54 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * {@link ContactBudget}: the moving averages follow the link and the
+ * contacts, and the budget shrinks as a contact goes on.
+ */
+public class ContactBudgetTest {
+
+    @Test
+    public void budgetShrinksAsTheContactGoesOn() {
+        ContactBudget budget = new ContactBudget();
+        long full = (long) (ContactBudget.DEFAULT_BYTES_PER_SECOND * ContactBudget.DEFAULT_CONTACT_MILLIS / 1000);
+        assertEquals(full, budget.budget(0));
+        assertEquals(full / 2, budget.budget(ContactBudget.DEFAULT_CONTACT_MILLIS / 2));
+        // Past the usual contact length there is still the minimum to try
+        assertEquals(ContactBudget.MIN_BUDGET_BYTES, budget.budget(ContactBudget.DEFAULT_CONTACT_MILLIS));
+        assertEquals(ContactBudget.MIN_BUDGET_BYTES, budget.budget(10 * ContactBudget.DEFAULT_CONTACT_MILLIS));
+    }
+
+    @Test
+    public void followsTheLink() {
+        ContactBudget budget = new ContactBudget();
+        // Too short to say anything
+        budget.recordTransfer(100, 1000000000L);
+        budget.recordTransfer(64 * 1024, 0);
+        assertEquals(ContactBudget.DEFAULT_BYTES_PER_SECOND, budget.getBytesPerSecond(), 0);
+
+        // 128 KiB/s: one sample moves a fifth of the way, many get there
+        budget.recordTransfer(128 * 1024, 1000000000L);
+        double expected = ContactBudget.DEFAULT_BYTES_PER_SECOND + 0.2 * (128 * 1024 - ContactBudget.DEFAULT_BYTES_PER_SECOND);
+        assertEquals(expected, budget.getBytesPerSecond(), 1e-6);
+        for (int i = 0; i < 100; i++) {
+            budget.recordTransfer(128 * 1024, 1000000000L);
+        }
+        assertEquals(128 * 1024, budget.getBytesPerSecond(), 1);
+    }
+
+    @Test
+    public void followsTheContacts() {
+        ContactBudget budget = new ContactBudget();
+        budget.recordContact(-1);
+        assertEquals(ContactBudget.DEFAULT_CONTACT_MILLIS, budget.getContactMillis(), 0);
+        for (int i = 0; i < 100; i++) {
+            budget.recordContact(60 * 1000);
+        }
+        assertEquals(60 * 1000, budget.getContactMillis(), 1);
+        assertEquals((long) (budget.getBytesPerSecond() * (budget.getContactMillis() - 30 * 1000) / 1000),
+                budget.budget(30 * 1000));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link DiscoveryScheduler} driven by a virtual clock: inquiries run
+ * when it says, for as long as it says, and report what they found.
+ */
+public class DiscoverySchedulerTest {
+
+    private static final String BEACON = "00:11:22:33:44:55";
+    private static final String PEER = "AA:BB:CC:DD:EE:FF";
+
+    private long mNow;
+    private DiscoveryScheduler mScheduler;
+
+    @Before
+    public void createScheduler() {
+        mNow = 1450000000000L;
+        mScheduler = new DiscoveryScheduler(mNow);
+    }
+
+    @Test
+    public void quietPeriodsBackOff() {
+        assertTrue(mScheduler.isDue(mNow));
+        for (int i = 0; i < 20; i++) {
+            inquiry(0);
+        }
+        assertEquals(DiscoveryScheduler.MAX_INTERVAL_MILLIS, mScheduler.getInterval());
+        assertEquals(DiscoveryScheduler.SHORT_INQUIRY_MILLIS, mScheduler.getInquiryMillis());
+    }
+
+    @Test
+    public void pendingCopiesKeepTheIntervalShort() {
+        for (int i = 0; i < 20; i++) {
+            inquiry(3);
+        }
+        assertEquals(DiscoveryScheduler.PENDING_MAX_INTERVAL_MILLIS, mScheduler.getInterval());
+        assertEquals(DiscoveryScheduler.FULL_INQUIRY_MILLIS, mScheduler.getInquiryMillis());
+    }
+
+    @Test
+    public void newPeersSpeedUp() {
+        for (int i = 0; i < 20; i++) {
+            inquiry(0);
+        }
+        long interval = mScheduler.getInterval();
+        inquiry(0, PEER);
+        assertEquals(interval / 2, mScheduler.getInterval());
+        // Still there next time: not new, back off again
+        inquiry(0, PEER);
+        assertEquals(interval, mScheduler.getInterval());
+        for (int i = 0; i < 10; i++) {
+            inquiry(0, "AA:BB:CC:DD:EE:" + String.format("%02X", i));
+        }
+        assertEquals(DiscoveryScheduler.MIN_INTERVAL_MILLIS, mScheduler.getInterval());
+    }
+
+    @Test
+    public void stationaryBeaconDoesNotOscillate() {
+        EncounterHistory history = new EncounterHistory();
+        for (int i = 0; i < 40; i++) {
+            long start = mScheduler.getNextInquiryAt();
+            boolean newEncounter = history.recordSighting(BEACON, "iBKS105", -60,
+                    start + mScheduler.getInquiryMillis());
+            inquiry(0, BEACON);
+            if (i > 0) {
+                // The cap stays inside the encounter gap: one long encounter
+                assertFalse(newEncounter);
+            }
+        }
+        assertEquals(DiscoveryScheduler.MAX_INTERVAL_MILLIS, mScheduler.getInterval());
+        assertTrue(DiscoveryScheduler.MAX_INTERVAL_MILLIS + DiscoveryScheduler.FULL_INQUIRY_MILLIS
+                < EncounterHistory.DEFAULT_ENCOUNTER_GAP_MILLIS);
+    }
+
+    @Test
+    public void wakeLooksSoon() {
+        for (int i = 0; i < 20; i++) {
+            inquiry(0);
+        }
+        mScheduler.wake(mNow);
+        assertTrue(mScheduler.getNextInquiryAt() <= mNow + DiscoveryScheduler.MIN_INTERVAL_MILLIS);
+        assertEquals(DiscoveryScheduler.DEFAULT_INTERVAL_MILLIS, mScheduler.getInterval());
+        assertEquals(DiscoveryScheduler.FULL_INQUIRY_MILLIS, mScheduler.getInquiryMillis());
+    }
+
+    @Test
+    public void sessionsPutInquiriesOffForAWhile() {
+        long dueAt = mScheduler.getNextInquiryAt();
+        mNow = dueAt;
+        while (mScheduler.defer(mNow)) {
+            assertFalse(mScheduler.isDue(mNow));
+            mNow = mScheduler.getNextInquiryAt();
+        }
+        assertTrue(mNow - dueAt >= DiscoveryScheduler.MAX_DEFER_MILLIS);
+        assertTrue(mNow - dueAt < DiscoveryScheduler.MAX_DEFER_MILLIS + DiscoveryScheduler.DEFER_MILLIS);
+    }
+
+    // Run the next inquiry on the virtual clock
+    private void inquiry(int sprayable, String... found) {
+        mNow = Math.max(mNow, mScheduler.getNextInquiryAt());
+        assertTrue(mScheduler.isDue(mNow));
+        mScheduler.inquiryStarted(mNow);
+        assertFalse(mScheduler.isDue(mNow));
+        for (String address : found) {
+            if (address.equals(BEACON)) {
+                mScheduler.beaconFound(address);
+            } else {
+                mScheduler.peerFound(address);
+            }
+        }
+        mNow += mScheduler.getInquiryMillis();
+        mScheduler.inquiryFinished(mNow, sprayable);
+    }
+}
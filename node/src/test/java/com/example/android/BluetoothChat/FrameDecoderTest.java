@@ -0,0 +1,74 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Frames written with {@link Frame#encode} come out of {@link FrameDecoder}
+ * whole, however the stream is cut into reads.
+ */
+public class FrameDecoderTest {
+
+    @Test
+    public void framesSurviveAnyReadBoundaries() throws IOException {
+        Random random = new Random(4);
+        byte[][] payloads = new byte[50][];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < payloads.length; i++) {
+            // Some larger than the decoder's initial buffer, some empty
+            payloads[i] = new byte[i % 7 == 0 ? 0 : random.nextInt(3000)];
+            random.nextBytes(payloads[i]);
+            stream.write(Frame.encode(1 + i % 15, payloads[i]));
+        }
+        byte[] bytes = stream.toByteArray();
+
+        FrameDecoder decoder = new FrameDecoder();
+        int frames = 0;
+        int position = 0;
+        while (position < bytes.length) {
+            int length = Math.min(bytes.length - position, 1 + random.nextInt(700));
+            decoder.append(bytes, position, length);
+            position += length;
+            Frame frame;
+            while ((frame = decoder.next()) != null) {
+                assertEquals(1 + frames % 15, frame.getType());
+                assertArrayEquals(payloads[frames], frame.getPayload());
+                frames++;
+            }
+        }
+        assertEquals(payloads.length, frames);
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    public void partialFrameWaitsForTheRest() throws IOException {
+        byte[] frame = Frame.encode(Frame.TYPE_MSG, new byte[] {1, 2, 3});
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.append(frame, 0, frame.length - 1);
+        assertNull(decoder.next());
+        assertEquals(frame.length - 1, decoder.pending());
+        decoder.append(frame, frame.length - 1, 1);
+        assertArrayEquals(new byte[] {1, 2, 3}, decoder.next().getPayload());
+    }
+
+    @Test
+    public void rejectsImpossibleLength() {
+        byte[] header = Frame.encode(Frame.TYPE_MSG, new byte[0]);
+        header[1] = (byte) 0x7f;
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.append(header, 0, header.length);
+        try {
+            decoder.next();
+            fail("accepted a frame longer than MAX_PAYLOAD_LENGTH");
+        } catch (IOException expected) {
+        }
+    }
+}
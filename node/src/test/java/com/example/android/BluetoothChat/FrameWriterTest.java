@@ -0,0 +1,166 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * {@link FrameWriter} on a link that stops taking bytes: producers are
+ * held back at the bound, control frames still get in line, a blocked
+ * write shows as a stall, and everything goes out in order once the
+ * link moves again.
+ */
+public class FrameWriterTest {
+
+    private static final int MAX_QUEUED_BYTES = 4096;
+    private static final long STALL_MILLIS = 200;
+
+    @Test
+    public void backpressureAndStall() throws Exception {
+        GatedStream stream = new GatedStream();
+        FrameWriter writer = start(stream);
+
+        // The writer takes the first frame and blocks in write()
+        assertTrue(writer.write(1, new byte[100]));
+        writer.flush();
+        assertTrue(stream.awaitEntered());
+
+        int offered = 0;
+        while (writer.offer(2, new byte[500])) {
+            offered++;
+        }
+        assertTrue(offered > 0);
+        assertTrue(writer.getQueuedBytes() <= MAX_QUEUED_BYTES);
+        assertFalse(writer.awaitSpace(500, 50));
+        // An ACK must not wait behind the copies
+        assertTrue(writer.writeControl(3, new byte[17]));
+        assertTrue(writer.getQueuedBytes() > MAX_QUEUED_BYTES - 500);
+
+        Thread.sleep(STALL_MILLIS + 50);
+        assertTrue(writer.isStalled(System.currentTimeMillis()));
+
+        stream.open();
+        assertTrue(writer.drain(5000));
+        assertFalse(writer.isStalled(System.currentTimeMillis()));
+        assertEquals(0, writer.getQueuedBytes());
+
+        List<Frame> frames = stream.frames();
+        assertEquals(offered + 2, frames.size());
+        assertEquals(1, frames.get(0).getType());
+        for (int i = 1; i <= offered; i++) {
+            assertEquals(2, frames.get(i).getType());
+        }
+        assertEquals(3, frames.get(offered + 1).getType());
+        writer.close();
+    }
+
+    @Test
+    public void writeWaitsForRoom() throws Exception {
+        GatedStream stream = new GatedStream();
+        final FrameWriter writer = start(stream);
+        writer.write(1, new byte[100]);
+        writer.flush();
+        assertTrue(stream.awaitEntered());
+        while (writer.offer(2, new byte[500])) {
+            // Fill the queue
+        }
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queued.set(writer.write(4, new byte[500]));
+            }
+        };
+        producer.start();
+        producer.join(STALL_MILLIS / 2);
+        assertTrue(producer.isAlive());
+
+        stream.open();
+        writer.flush();
+        producer.join(5000);
+        assertTrue(queued.get());
+        assertTrue(writer.drain(5000));
+        List<Frame> frames = stream.frames();
+        assertEquals(4, frames.get(frames.size() - 1).getType());
+
+        // Once closed nothing more is taken
+        writer.close();
+        assertFalse(writer.offer(2, new byte[10]));
+        assertFalse(writer.write(2, new byte[10]));
+        assertFalse(writer.writeControl(3, new byte[17]));
+    }
+
+    private static FrameWriter start(OutputStream out) {
+        FrameWriter writer = new FrameWriter(out, new FrameWriter.Listener() {
+            @Override
+            public void onFrameWritten(Frame frame) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+            }
+        }, MAX_QUEUED_BYTES, STALL_MILLIS);
+        writer.start();
+        return writer;
+    }
+
+    // A link that takes no bytes until opened
+    private static class GatedStream extends OutputStream {
+        private final CountDownLatch mEntered = new CountDownLatch(1);
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mEntered.countDown();
+            try {
+                mOpen.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (mBytes) {
+                mBytes.write(b, off, len);
+            }
+        }
+
+        boolean awaitEntered() throws InterruptedException {
+            return mEntered.await(5, TimeUnit.SECONDS);
+        }
+
+        void open() {
+            mOpen.countDown();
+        }
+
+        List<Frame> frames() throws IOException {
+            byte[] bytes;
+            synchronized (mBytes) {
+                bytes = mBytes.toByteArray();
+            }
+            FrameDecoder decoder = new FrameDecoder();
+            decoder.append(bytes, 0, bytes.length);
+            ArrayList<Frame> frames = new ArrayList<>();
+            Frame frame;
+            while ((frame = decoder.next()) != null) {
+                frames.add(frame);
+            }
+            return frames;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips through {@link MessageCodec}, and its size and speed next
+ * to the Java serialization it replaced.
+ */
+public class MessageCodecTest {
+
+    private static final int BATCH = 200;
+    private static final int RUNS = 50;
+
+    @Test
+    public void roundTripKeepsEveryField() throws IOException {
+        List<MessageBT> sent = Arrays.asList(
+                new MessageBT(MessageId.random(), "hello", "00:11:22:33:44:55", "AA:BB:CC:DD:EE:FF",
+                        3, 8, 1450000000000L, MessageBT.DEFAULT_TTL_MILLIS),
+                // Lower case and non-MAC addresses go as strings, nulls as flags
+                new MessageBT(MessageId.random(), "\u00e9t\u00e9 \u2603", "aa:bb:cc:dd:ee:ff", "beacon-7",
+                        -1, 0, 0, 1),
+                new MessageBT(MessageId.random(), null, null, null, 0, 1, Long.MAX_VALUE / 2, 0));
+
+        List<MessageBT> received = MessageCodec.decode(MessageCodec.encode(sent));
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertSame(sent.get(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void emptyBatch() throws IOException {
+        assertEquals(0, MessageCodec.decode(MessageCodec.encode(Collections.<MessageBT>emptyList())).size());
+    }
+
+    @Test
+    public void rejectsOtherVersions() {
+        byte[] payload = MessageCodec.encode(batch(new Random(1), 1));
+        payload[0] = MessageCodec.VERSION + 1;
+        try {
+            MessageCodec.decode(payload);
+            fail("decoded a batch of another version");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedBatch() {
+        byte[] payload = MessageCodec.encode(batch(new Random(2), 3));
+        try {
+            MessageCodec.decode(Arrays.copyOf(payload, payload.length - 1));
+            fail("decoded a truncated batch");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void smallerAndFasterThanSerialization() throws Exception {
+        ArrayList<MessageBT> batch = batch(new Random(3), BATCH);
+        byte[] codec = MessageCodec.encode(batch);
+        byte[] serialized = serialize(batch);
+        assertTrue(codec.length < serialized.length);
+
+        // Warm up both before timing
+        long codecNanos = 0;
+        long serialNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                MessageCodec.decode(MessageCodec.encode(batch));
+            }
+            codecNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                deserialize(serialize(batch));
+            }
+            serialNanos = System.nanoTime() - start;
+        }
+        System.out.printf("%d messages: codec %d bytes, %.2f ms per round trip; "
+                        + "serialization %d bytes, %.2f ms per round trip%n",
+                BATCH, codec.length, codecNanos / 1e6 / RUNS,
+                serialized.length, serialNanos / 1e6 / RUNS);
+    }
+
+    static ArrayList<MessageBT> batch(Random random, int count) {
+        ArrayList<MessageBT> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(new MessageBT(new MessageId(random.nextLong(), random.nextLong()),
+                    "message " + i, mac(random), mac(random), random.nextInt(4),
+                    MessageBT.DEFAULT_COPIES, 1450000000000L + i, MessageBT.DEFAULT_TTL_MILLIS));
+        }
+        return batch;
+    }
+
+    static String mac(Random random) {
+        return String.format("%02X:%02X:%02X:%02X:%02X:%02X", random.nextInt(256), random.nextInt(256),
+                random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+
+    static void assertSame(MessageBT expected, MessageBT actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getDestination(), actual.getDestination());
+        assertEquals(expected.getBeaconId(), actual.getBeaconId());
+        assertEquals(expected.getSprayCount(), actual.getSprayCount());
+        assertEquals(expected.getCopies(), actual.getCopies());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getTtl(), actual.getTtl());
+    }
+
+    private static byte[] serialize(ArrayList<MessageBT> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(batch);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
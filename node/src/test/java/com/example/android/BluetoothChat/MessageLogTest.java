@@ -0,0 +1,184 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A {@link MessageLog} brings a store and its deliveries back as they
+ * were: after a clean close, after a crash in the middle of a record
+ * and after compaction.
+ */
+public class MessageLogTest {
+
+    private static final int REPLAY_MESSAGES = 100000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private MessageLog mLog;
+    private MessageStore mStore;
+    private DeliveredSet mDelivered;
+
+    @Before
+    public void openLog() throws IOException {
+        mFile = new File(mFolder.getRoot(), "messages.log");
+        mStore = new MessageStore();
+        mDelivered = new DeliveredSet();
+        mLog = new MessageLog(mFile);
+        mLog.replay(mStore, mDelivered);
+    }
+
+    @After
+    public void closeLog() throws IOException {
+        mLog.close();
+    }
+
+    @Test
+    public void replayRestoresEveryChange() throws IOException {
+        List<MessageBT> messages = put(new Random(8), 10);
+        MessageId sprayed = messages.get(0).getId();
+        int sprayCount = messages.get(0).getSprayCount();
+        MessageId removed = messages.get(1).getId();
+        MessageId delivered = MessageId.random();
+        assertEquals(MessageBT.DEFAULT_COPIES / 2, mStore.splitCopies(sprayed));
+        mStore.markForwarded(sprayed);
+        mStore.remove(removed);
+        mDelivered.add(delivered, System.currentTimeMillis() + MessageBT.DEFAULT_TTL_MILLIS);
+
+        reopen();
+
+        assertEquals(9, mStore.size());
+        assertEquals(MessageBT.DEFAULT_COPIES / 2, mStore.get(sprayed).getCopies());
+        assertEquals(sprayCount + 1, mStore.get(sprayed).getSprayCount());
+        assertNull(mStore.get(removed));
+        assertTrue(mStore.hasSeen(removed));
+        assertTrue(mDelivered.contains(delivered));
+        MessageCodecTest.assertSame(messages.get(2), mStore.get(messages.get(2).getId()));
+    }
+
+    @Test
+    public void damagedTailIsCutOff() throws IOException {
+        List<MessageBT> messages = put(new Random(9), 5);
+        long intact = mLog.length();
+        put(new Random(10), 1);
+        long full = mLog.length();
+        mLog.close();
+
+        // A crash half way through the last record
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(full - 3);
+        raf.close();
+        reopenWithoutClose();
+        assertEquals(5, mStore.size());
+        assertEquals(intact, mFile.length());
+
+        // The store keeps working on the cut log
+        put(new Random(11), 1);
+        reopen();
+        assertEquals(6, mStore.size());
+        for (MessageBT message : messages) {
+            assertTrue(mStore.contains(message.getId()));
+        }
+    }
+
+    @Test
+    public void corruptRecordEndsReplay() throws IOException {
+        put(new Random(12), 3);
+        long intact = mLog.length();
+        put(new Random(13), 2);
+        mLog.close();
+
+        // Flip a payload byte of the fourth record: it and all after it go
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.seek(intact + 20);
+        int b = raf.read();
+        raf.seek(intact + 20);
+        raf.write(b ^ 0xff);
+        raf.close();
+        reopenWithoutClose();
+
+        assertEquals(3, mStore.size());
+        assertEquals(intact, mFile.length());
+    }
+
+    @Test
+    public void compactionKeepsTheState() throws IOException {
+        List<MessageBT> messages = put(new Random(14), 200);
+        for (int i = 0; i < 100; i++) {
+            mStore.remove(messages.get(i).getId());
+        }
+        mStore.setCopies(messages.get(150).getId(), 3);
+        long expiresAt = System.currentTimeMillis() + MessageBT.DEFAULT_TTL_MILLIS;
+        for (int i = 0; i < 20; i++) {
+            mDelivered.add(messages.get(i).getId(), expiresAt);
+        }
+        mLog.compact();
+        // Learned after the snapshot, so it lives in the tail
+        MessageId late = MessageId.random();
+        mDelivered.add(late, expiresAt);
+
+        reopen();
+        assertEquals(100, mStore.size());
+        assertEquals(3, mStore.get(messages.get(150).getId()).getCopies());
+        assertTrue(mStore.hasSeen(messages.get(0).getId()));
+        assertFalse(mStore.putIfAbsent(messages.get(0)));
+        assertEquals(21, mDelivered.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(mDelivered.contains(messages.get(i).getId()));
+        }
+        assertTrue(mDelivered.contains(late));
+    }
+
+    @Test
+    public void replayOfManyMessages() throws IOException {
+        put(new Random(15), REPLAY_MESSAGES);
+        mLog.sync();
+        long bytes = mLog.length();
+        mLog.close();
+
+        long start = System.nanoTime();
+        reopenWithoutClose();
+        long nanos = System.nanoTime() - start;
+        System.out.printf("Replayed %d messages, %d KB, in %.0f ms%n",
+                REPLAY_MESSAGES, bytes / 1024, nanos / 1e6);
+        assertEquals(REPLAY_MESSAGES, mStore.size());
+    }
+
+    private List<MessageBT> put(Random random, int count) {
+        ArrayList<MessageBT> messages = MessageCodecTest.batch(random, count);
+        for (MessageBT message : messages) {
+            // Batch messages were created long ago, give them a fresh start
+            message.setCreatedAt(System.currentTimeMillis());
+            mStore.put(message);
+        }
+        return messages;
+    }
+
+    private void reopen() throws IOException {
+        mLog.close();
+        reopenWithoutClose();
+    }
+
+    private void reopenWithoutClose() throws IOException {
+        mStore = new MessageStore();
+        mDelivered = new DeliveredSet();
+        mLog = new MessageLog(mFile);
+        mLog.replay(mStore, mDelivered);
+    }
+}
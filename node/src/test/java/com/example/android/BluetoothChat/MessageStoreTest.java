@@ -0,0 +1,309 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The beacon index of {@link MessageStore} against a plain scan, how
+ * much faster it picks the candidates for a peer, its limits, and
+ * several threads writing to it and its log at once.
+ */
+public class MessageStoreTest {
+
+    private static final int MESSAGES = 100000;
+    private static final int BEACONS = 2000;
+    private static final int PEER_BEACONS = 300;
+    private static final int RUNS = 20;
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void indexMatchesScan() {
+        Random random = new Random(5);
+        MessageStore store = new MessageStore();
+        List<String> beacons = beacons(200);
+        List<MessageBT> all = fill(store, random, beacons, 5000);
+        List<String> peer = beacons.subList(0, 50);
+
+        assertEquals(ids(scan(all, peer)), ids(store.sprayableForBeacons(peer)));
+        assertEquals(ids(scan(all, beacons)), ids(store.sprayableForBeacons(beacons)));
+    }
+
+    @Test
+    public void indexFollowsChanges() {
+        MessageStore store = new MessageStore();
+        MessageBT message = message(new Random(6), "00:00:00:00:00:01", MessageBT.DEFAULT_COPIES);
+        List<String> peer = Collections.singletonList("00:00:00:00:00:01");
+        store.put(message);
+        assertEquals(1, store.sprayableForBeacons(peer).size());
+
+        // Down to its last copy it waits, and is no longer sprayed
+        store.setCopies(message.getId(), 1);
+        assertTrue(store.sprayableForBeacons(peer).isEmpty());
+        assertFalse(store.hasSprayable());
+        store.setCopies(message.getId(), 4);
+        assertEquals(1, store.sprayableForBeacons(peer).size());
+
+        store.remove(message.getId());
+        assertTrue(store.sprayableForBeacons(peer).isEmpty());
+        assertTrue(store.idsForBeacon("00:00:00:00:00:01").isEmpty());
+    }
+
+    @Test
+    public void splitHandsOutEveryCopyOnce() throws Exception {
+        final MessageStore store = new MessageStore();
+        final MessageBT message = message(new Random(9), "00:00:00:00:00:01", 64);
+        store.put(message);
+
+        // Binary split: half goes, the larger half stays, down to the last copy
+        assertEquals(32, store.splitCopies(message.getId()));
+        assertEquals(32, store.get(message.getId()).getCopies());
+        store.setCopies(message.getId(), 3);
+        assertEquals(1, store.splitCopies(message.getId()));
+        assertEquals(2, store.get(message.getId()).getCopies());
+        assertEquals(1, store.splitCopies(message.getId()));
+        assertEquals(0, store.splitCopies(message.getId()));
+        assertEquals(1, store.get(message.getId()).getCopies());
+        assertFalse(store.hasSprayable());
+        assertEquals(0, store.splitCopies(MessageId.random()));
+
+        // Sessions claiming at once never hand out more than there was
+        store.setCopies(message.getId(), 1 << 20);
+        final AtomicInteger claimed = new AtomicInteger();
+        Thread[] sessions = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            sessions[t] = new Thread() {
+                @Override
+                public void run() {
+                    int copies;
+                    while ((copies = store.splitCopies(message.getId())) > 0) {
+                        claimed.addAndGet(copies);
+                    }
+                }
+            };
+            sessions[t].start();
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+        assertEquals(1, store.get(message.getId()).getCopies());
+        assertEquals((1 << 20) - 1, claimed.get());
+    }
+
+    @Test
+    public void replicaLeavesCopies() {
+        MessageStore store = new MessageStore();
+        MessageBT message = message(new Random(8), "00:00:00:00:00:01", MessageBT.DEFAULT_COPIES);
+        store.put(message);
+
+        // Epidemic and PRoPHET hand over replicas: neither budget changes
+        MessageBT replica = Contact.replica(message);
+        assertEquals(0, replica.getCopies());
+        assertEquals(MessageBT.DEFAULT_COPIES, store.get(message.getId()).getCopies());
+        assertFalse(store.putIfAbsent(replica));
+        assertTrue(store.returnCopies(message.getId(), replica.getCopies()));
+        assertEquals(MessageBT.DEFAULT_COPIES, store.get(message.getId()).getCopies());
+    }
+
+    @Test
+    public void indexBeatsScan() {
+        Random random = new Random(7);
+        MessageStore store = new MessageStore();
+        List<String> beacons = beacons(BEACONS);
+        List<MessageBT> all = fill(store, random, beacons, MESSAGES);
+        List<String> peer = new ArrayList<>(beacons.subList(0, PEER_BEACONS));
+
+        long indexNanos = 0;
+        long scanNanos = 0;
+        int found = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                found = store.sprayableForBeacons(peer).size();
+            }
+            indexNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) {
+                assertEquals(found, scan(all, peer).size());
+            }
+            scanNanos = System.nanoTime() - start;
+        }
+        System.out.printf("%d messages, %d peer beacons, %d candidates: index %.2f ms, scan %.2f ms%n",
+                MESSAGES, PEER_BEACONS, found, indexNanos / 1e6 / RUNS, scanNanos / 1e6 / RUNS);
+        assertTrue(indexNanos < scanNanos);
+    }
+
+    @Test
+    public void capacityHoldsForWholeStore() {
+        Random random = new Random(8);
+        MessageStore store = new MessageStore(10, Long.MAX_VALUE, EvictionPolicy.FIFO);
+        List<MessageBT> all = fill(store, random, beacons(20), 100);
+        assertEquals(10, store.size());
+        // Oldest first: the ten stored last are left
+        assertEquals(ids(all.subList(90, 100)), new HashSet<>(store.ids()));
+        assertEquals(90, store.getEvictedCount());
+
+        long maxBytes = 25 * MessageStore.footprint(all.get(0));
+        MessageStore bounded = new MessageStore(Integer.MAX_VALUE, maxBytes, EvictionPolicy.MOST_SPRAYED_FIRST);
+        final List<MessageBT> stored = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            MessageBT message = new MessageBT(new MessageId(random.nextLong(), random.nextLong()), "text",
+                    "AA:BB:CC:DD:EE:FF", "00:11:22:33:44:55", random.nextInt(10),
+                    MessageBT.DEFAULT_COPIES, System.currentTimeMillis(), MessageBT.DEFAULT_TTL_MILLIS);
+            bounded.put(message);
+            stored.add(message);
+            assertTrue(bounded.getBytes() <= maxBytes);
+        }
+        assertEquals(25, bounded.size());
+        // What is left are the least sprayed, the newest of them on a tie
+        List<MessageBT> expected = new ArrayList<>(stored);
+        Collections.sort(expected, new Comparator<MessageBT>() {
+            @Override
+            public int compare(MessageBT a, MessageBT b) {
+                int c = Integer.compare(a.getSprayCount(), b.getSprayCount());
+                return c != 0 ? c : Integer.compare(stored.indexOf(b), stored.indexOf(a));
+            }
+        });
+        assertEquals(ids(expected.subList(0, 25)), new HashSet<>(bounded.ids()));
+
+        // A lower limit applies right away
+        bounded.setCapacity(5, maxBytes);
+        assertEquals(5, bounded.size());
+        assertEquals(ids(expected.subList(0, 5)), new HashSet<>(bounded.ids()));
+    }
+
+    @Test
+    public void concurrentWritersOnStripes() throws Exception {
+        File file = mFolder.newFile("messages.log");
+        MessageLog log = new MessageLog(file);
+        final MessageStore store = new MessageStore();
+        log.replay(store, new DeliveredSet());
+        final List<String> beacons = beacons(50);
+        final int perThread = 10000;
+        // Random IDs spread every thread over all stripes, so writers keep
+        // meeting on different stripes at once
+        Thread[] writers = new Thread[THREADS];
+        final List<List<MessageBT>> written = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(100 + t);
+            final List<MessageBT> mine = new ArrayList<>(perThread);
+            written.add(mine);
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            MessageBT message = message(random, beacons.get(random.nextInt(beacons.size())),
+                                    MessageBT.DEFAULT_COPIES);
+                            assertTrue(store.putIfAbsent(message));
+                            assertEquals(MessageBT.DEFAULT_COPIES / 2, store.splitCopies(message.getId()));
+                            store.markForwarded(message.getId());
+                            if (i % 4 == 0) {
+                                store.remove(message.getId());
+                            } else {
+                                mine.add(message);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        System.out.printf("%d threads stored %d messages in %.1f ms%n", THREADS, THREADS * perThread,
+                (System.nanoTime() - start) / 1e6);
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        int kept = THREADS * perThread * 3 / 4;
+        assertEquals(kept, store.size());
+        assertEquals(kept, store.sprayableForBeacons(beacons).size());
+        for (List<MessageBT> mine : written) {
+            for (MessageBT message : mine) {
+                assertEquals(1, store.get(message.getId()).getSprayCount());
+            }
+        }
+
+        // Every thread's records made it to the log in an order that
+        // replays to the same store
+        log.close();
+        MessageStore replayed = new MessageStore();
+        new MessageLog(file).replay(replayed, new DeliveredSet());
+        assertEquals(new HashSet<>(store.ids()), new HashSet<>(replayed.ids()));
+        for (MessageId id : store.ids()) {
+            assertEquals(store.get(id).getCopies(), replayed.get(id).getCopies());
+            assertEquals(1, replayed.get(id).getSprayCount());
+        }
+        for (List<MessageBT> mine : written) {
+            assertTrue(replayed.hasSeen(mine.get(0).getId()));
+        }
+    }
+
+    private static List<String> beacons(int count) {
+        ArrayList<String> beacons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            beacons.add(String.format("00:11:22:33:%02X:%02X", i >> 8, i & 0xff));
+        }
+        return beacons;
+    }
+
+    private static List<MessageBT> fill(MessageStore store, Random random, List<String> beacons, int count) {
+        ArrayList<MessageBT> all = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // A quarter waits for its destination with a single copy
+            MessageBT message = message(random, beacons.get(random.nextInt(beacons.size())),
+                    random.nextInt(4) == 0 ? 1 : MessageBT.DEFAULT_COPIES);
+            store.put(message);
+            all.add(message);
+        }
+        return all;
+    }
+
+    private static MessageBT message(Random random, String beacon, int copies) {
+        return new MessageBT(new MessageId(random.nextLong(), random.nextLong()), "text",
+                "AA:BB:CC:DD:EE:FF", beacon, 0, copies, System.currentTimeMillis(),
+                MessageBT.DEFAULT_TTL_MILLIS);
+    }
+
+    // What the forwarding decision did before the index: every message against the peer's list
+    private static List<MessageBT> scan(List<MessageBT> all, List<String> beacons) {
+        ArrayList<MessageBT> candidates = new ArrayList<>();
+        for (MessageBT message : all) {
+            if (message.getCopies() > 1 && beacons.contains(message.getBeaconId())) {
+                candidates.add(message);
+            }
+        }
+        return candidates;
+    }
+
+    private static HashSet<MessageId> ids(List<MessageBT> messages) {
+        HashSet<MessageId> ids = new HashSet<>();
+        for (MessageBT message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+}
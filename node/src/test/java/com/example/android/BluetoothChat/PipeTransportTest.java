@@ -0,0 +1,277 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Links over {@link PipeTransport}: frames go both ways through the
+ * in-memory pipes, also when they are larger than a pipe holds. Two
+ * nodes in one JVM then run the whole protocol over it: handshake,
+ * direct delivery and spraying both ways towards a shared beacon.
+ */
+public class PipeTransportTest {
+
+    private static final String BEACON = "00:11:22:33:44:55";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final List<SpotNetNode> mNodes = new ArrayList<>();
+
+    @After
+    public void stopNodes() {
+        for (SpotNetNode node : mNodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void framesCrossLinkBothWays() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        LinkListener listener = new PipeTransport(network, "B").listen();
+        try {
+            final Link outgoing = new PipeTransport(network, "A").createLink("B");
+            outgoing.connect();
+            Link incoming = listener.accept();
+            assertEquals("A", incoming.getPeer().getAddress());
+
+            // Bigger than a pipe, so the writer has to wait for the reader
+            final byte[] payload = new byte[200 * 1024];
+            new Random(11).nextBytes(payload);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        outgoing.getOutputStream().write(Frame.encode(Frame.TYPE_MSG, payload));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            Frame frame = readFrame(incoming.getInputStream());
+            writer.join();
+            assertEquals(Frame.TYPE_MSG, frame.getType());
+            assertArrayEquals(payload, frame.getPayload());
+
+            incoming.getOutputStream().write(Frame.encode(Frame.TYPE_TEXT, new byte[] {1, 2, 3}));
+            assertArrayEquals(new byte[] {1, 2, 3}, readFrame(outgoing.getInputStream()).getPayload());
+
+            // Closing one end fails the other
+            incoming.close();
+            assertEquals(-1, outgoing.getInputStream().read());
+            try {
+                outgoing.getOutputStream().write(new byte[1]);
+                fail("wrote to a closed link");
+            } catch (IOException expected) {
+            }
+        } finally {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void handshakeDeliversAndSprays() throws InterruptedException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        SpotNetNode a = node(network, "A");
+        SpotNetNode b = node(network, "B");
+        Listener bListener = new Listener();
+        b.addListener(bListener);
+        // Both have been near the beacon, so each sprays to the other what
+        // is aimed there, in the same round trip
+        a.addBeacon(BEACON, "iBKS105", -60);
+        b.addBeacon(BEACON, "iBKS105", -60);
+        MessageBT direct = a.originate("for B", "B", BEACON);
+        MessageBT fromA = a.originate("for C", "C", BEACON);
+        MessageBT fromB = b.originate("for D", "D", BEACON);
+
+        long start = System.nanoTime();
+        a.connect("B");
+        assertTrue("peer never connected", bListener.connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue("message never delivered", bListener.delivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        System.out.printf("Connected and delivered in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        assertEquals(direct.getId(), bListener.message.getId());
+        assertEquals("for B", bListener.message.getText());
+        assertTrue(b.getDelivered().contains(direct.getId()));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (!(holdsHalf(b, fromA) && holdsHalf(a, fromB)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Half of the copies move with each message
+        assertTrue("B is missing the copies from A", holdsHalf(b, fromA));
+        assertTrue("A is missing the copies from B", holdsHalf(a, fromB));
+        assertEquals(MessageBT.DEFAULT_COPIES / 2, a.getStore().get(fromA.getId()).getCopies());
+        assertEquals(MessageBT.DEFAULT_COPIES / 2, b.getStore().get(fromB.getId()).getCopies());
+    }
+
+    @Test
+    public void newsStartsRoundOnOpenLink() throws InterruptedException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        SpotNetNode a = node(network, "A");
+        SpotNetNode b = node(network, "B");
+        Listener bListener = new Listener();
+        b.addListener(bListener);
+        a.connect("B");
+        assertTrue("peer never connected", bListener.connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Let the first round end with nothing to send
+        Thread.sleep(200);
+
+        // The UI thread only leaves a note for the session thread, which
+        // asks the peer for a round with SYNC
+        long start = System.nanoTime();
+        MessageBT later = a.originate("later", "B", BEACON);
+        assertTrue("message never delivered", bListener.delivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        System.out.printf("Delivered over the open link in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        assertEquals(later.getId(), bListener.message.getId());
+    }
+
+    @Test
+    public void deltaMissedByRestartedPeer() throws InterruptedException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        SpotNetNode a = node(network, "A");
+        SpotNetNode b = node(network, "B");
+        Listener aListener = new Listener();
+        a.addListener(aListener);
+        a.addBeacon(BEACON, "iBKS105", -60);
+        a.connect("B");
+        assertTrue("peer never connected", aListener.connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (a.getPeerStateCache().get("B").getBeaconsSent() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(a.getPeerStateCache().get("B").getBeaconsSent() != 0);
+
+        // B comes back without what it held of A, while A still sends it
+        // deltas. B drops them, says so in its HELLO and only picks its
+        // copies for A once the full state arrived
+        b.stop();
+        assertTrue("link never lost", aListener.lost.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        SpotNetNode restarted = node(network, "B");
+        restarted.addBeacon(BEACON, "iBKS105", -60);
+        MessageBT fromB = restarted.originate("for D", "D", BEACON);
+        a.connect("B");
+        PeerStateCache.PeerState held = restarted.getPeerStateCache().get("A");
+        while (!(held.getBeacons() != null && holdsHalf(a, fromB)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(BEACON), held.getBeacons());
+        assertTrue("A is missing the copies from B", holdsHalf(a, fromB));
+    }
+
+    @Test
+    public void symmetricSprayPastQueueBound() throws InterruptedException {
+        // Link buffers of a few KB, as on a radio link, so the writers
+        // back up instead of the pipes taking everything
+        PipeTransport.Network network = new PipeTransport.Network(2 * 1024);
+        SpotNetNode a = node(network, "A");
+        SpotNetNode b = node(network, "B");
+        a.addBeacon(BEACON, "iBKS105", -60);
+        b.addBeacon(BEACON, "iBKS105", -60);
+        // Each side sprays more than a full writer queue at the other, so
+        // both block on backpressure at once and only get going again if
+        // their acknowledgements still go out. Small copies leave little
+        // room in a full queue for those
+        char[] text = new char[400];
+        Arrays.fill(text, 'x');
+        int count = 250;
+        List<MessageBT> fromA = new ArrayList<>();
+        List<MessageBT> fromB = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            fromA.add(a.originate(new String(text), "C" + i, BEACON));
+            fromB.add(b.originate(new String(text), "D" + i, BEACON));
+        }
+
+        long start = System.nanoTime();
+        a.connect("B");
+        // Well inside the writer's stall timeout
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000 / 2;
+        while (!(holdsAll(b, fromA) && holdsAll(a, fromB)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        System.out.printf("Sprayed %d copies each way in %.1f ms%n",
+                count, (System.nanoTime() - start) / 1e6);
+        assertTrue("B is missing copies from A", holdsAll(b, fromA));
+        assertTrue("A is missing copies from B", holdsAll(a, fromB));
+    }
+
+    private static boolean holdsHalf(SpotNetNode node, MessageBT message) {
+        MessageBT held = node.getStore().get(message.getId());
+        return held != null && held.getCopies() == MessageBT.DEFAULT_COPIES / 2;
+    }
+
+    private static boolean holdsAll(SpotNetNode node, List<MessageBT> messages) {
+        for (MessageBT message : messages) {
+            if (!node.getStore().contains(message.getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SpotNetNode node(PipeTransport.Network network, String address) {
+        SpotNetNode node = new SpotNetNode(new PipeTransport(network, address));
+        node.start();
+        mNodes.add(node);
+        return node;
+    }
+
+    private static Frame readFrame(InputStream in) throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] buffer = new byte[1024];
+        Frame frame;
+        while ((frame = decoder.next()) == null) {
+            int bytes = in.read(buffer);
+            if (bytes < 0) {
+                throw new IOException("Link closed");
+            }
+            decoder.append(buffer, 0, bytes);
+        }
+        return frame;
+    }
+
+    private static class Listener implements NodeListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final CountDownLatch lost = new CountDownLatch(1);
+        volatile MessageBT message;
+
+        public void onStateChanged(int state) {
+        }
+
+        public void onPeerConnected(Peer peer) {
+            connected.countDown();
+        }
+
+        public void onConnectionFailed(String address) {
+        }
+
+        public void onConnectionLost(String address) {
+            lost.countDown();
+        }
+
+        public void onFrameReceived(Peer peer, int type, byte[] payload) {
+        }
+
+        public void onFrameSent(Peer peer, int type, byte[] payload) {
+        }
+
+        public void onMessageDelivered(MessageBT message) {
+            this.message = message;
+            delivered.countDown();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Deltas onto a digest the peer holds: exact lists follow removals, and
+ * a Bloom filter, which cannot, is sent in full again before the IDs
+ * removed from it add up.
+ */
+public class StoreDigestTest {
+
+    private static final int IDS = 2000;
+    private static final int ROUNDS = 200;
+    private static final int CHURN = 5;
+
+    @Test
+    public void listFollowsRemovals() throws IOException {
+        long[] from = {1, 2, 3, 4};
+        long[] to = {2, 4, 5};
+        StoreDigest held = StoreDigest.decode(StoreDigest.encode(from.clone()));
+        StoreDigest digest = held.apply(StoreDigest.decodeDelta(StoreDigest.encodeDelta(1, from, 2, to)));
+        assertFalse(digest.mightContain(1));
+        assertFalse(digest.mightContain(3));
+        assertTrue(digest.mightContain(5));
+    }
+
+    @Test
+    public void bloomSentInFullBeforeRemovalsPileUp() throws IOException {
+        Random random = new Random(9);
+        long[] ids = new long[IDS];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextLong();
+        }
+        Arrays.sort(ids);
+
+        // The holder's side: what it tells the peer, as writeDigest does
+        PeerStateCache.PeerState state = new PeerStateCache.PeerState();
+        StoreDigest held = StoreDigest.decode(StoreDigest.encode(ids.clone()));
+        state.setDigestFull(ids.length);
+        assertTrue(held.isBloom());
+
+        long[] removedSinceFull = new long[0];
+        int fulls = 0;
+        for (int round = 1; round <= ROUNDS; round++) {
+            // Some messages leave the store, as many new ones come in
+            long[] next = ids.clone();
+            long[] removed = new long[CHURN];
+            for (int i = 0; i < CHURN; i++) {
+                int at = random.nextInt(next.length);
+                removed[i] = next[at];
+                next[at] = random.nextLong();
+            }
+            Arrays.sort(next);
+            StoreDigest.Delta delta = StoreDigest.diff(round, ids, round + 1, next);
+            if (state.digestTakes(delta)) {
+                held = held.apply(StoreDigest.decodeDelta(delta.encode()));
+                state.addDigestDelta(delta);
+                removedSinceFull = concat(removedSinceFull, removed);
+            } else {
+                held = StoreDigest.decode(StoreDigest.encode(next.clone()));
+                state.setDigestFull(next.length);
+                removedSinceFull = new long[0];
+                fulls++;
+            }
+            ids = next;
+
+            // Removed IDs the peer still counts as held stay within the budget
+            int stale = 0;
+            for (long id : removedSinceFull) {
+                if (held.mightContain(id) && Arrays.binarySearch(ids, id) < 0) {
+                    stale++;
+                }
+            }
+            assertTrue("round " + round + ": " + stale + " stale", stale <= IDS / 100);
+        }
+        assertTrue(fulls > 0 && fulls < ROUNDS / 2);
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return all;
+    }
+}
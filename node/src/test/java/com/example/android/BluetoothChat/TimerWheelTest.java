@@ -0,0 +1,106 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link TimerWheel} against a plain map of deadlines: keys fire on the
+ * first tick at or after their deadline, on every level and beyond.
+ */
+public class TimerWheelTest {
+
+    private static final long TICK = 1000;
+    // Past what the top level reaches
+    private static final long HORIZON = TICK << (TimerWheel.SLOT_BITS * TimerWheel.LEVELS + 1);
+
+    @Test
+    public void firesOnTheTickOfTheDeadline() {
+        Random random = new Random(16);
+        long now = 1450000000000L;
+        TimerWheel<Integer> wheel = new TimerWheel<>(TICK, now);
+        // key -> tick it must fire on
+        HashMap<Integer, Long> due = new HashMap<>();
+        int next = 0;
+
+        while (now < 1450000000000L + 2 * HORIZON) {
+            for (int i = random.nextInt(20); i > 0; i--) {
+                // Mostly soon, some far, a few already past
+                long delay = random.nextInt(4) == 0 ? (long) (random.nextDouble() * HORIZON)
+                        : random.nextInt(100000) - 5000;
+                int key = random.nextInt(3) == 0 && !due.isEmpty() ? anyKey(due, random) : next++;
+                wheel.schedule(key, now + delay);
+                due.put(key, Math.max(now / TICK + 1, ceilDiv(now + delay, TICK)));
+            }
+            if (random.nextInt(10) == 0 && !due.isEmpty()) {
+                int key = anyKey(due, random);
+                assertTrue(wheel.cancel(key));
+                due.remove(key);
+            }
+
+            now += random.nextInt(8) == 0 ? random.nextInt((int) (HORIZON / 50)) : random.nextInt(5000);
+            ArrayList<Integer> expired = new ArrayList<>();
+            int count = wheel.advance(now, expired);
+
+            HashSet<Integer> expected = new HashSet<>();
+            for (Map.Entry<Integer, Long> entry : due.entrySet()) {
+                if (entry.getValue() <= now / TICK) {
+                    expected.add(entry.getKey());
+                }
+            }
+            assertEquals(expected, new HashSet<>(expired));
+            assertEquals(expected.size(), count);
+            due.keySet().removeAll(expected);
+            assertEquals(due.size(), wheel.size());
+        }
+    }
+
+    @Test
+    public void cancelledKeysNeverFire() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 0);
+        wheel.schedule("a", 5 * TICK);
+        wheel.schedule("b", 5 * TICK);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        assertFalse(wheel.contains("a"));
+
+        ArrayList<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(4 * TICK, expired));
+        assertEquals(1, wheel.advance(5 * TICK, expired));
+        assertEquals("b", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduleReplacesTheDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(TICK, 0);
+        wheel.schedule("a", 2 * TICK);
+        wheel.schedule("a", 100 * TICK);
+        ArrayList<String> expired = new ArrayList<>();
+        assertEquals(0, wheel.advance(99 * TICK, expired));
+        assertEquals(1, wheel.advance(100 * TICK, expired));
+    }
+
+    private static int anyKey(HashMap<Integer, Long> due, Random random) {
+        int skip = random.nextInt(due.size());
+        for (int key : due.keySet()) {
+            if (skip-- == 0) {
+                return key;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    // Deadlines here are all positive
+    private static long ceilDiv(long value, long divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
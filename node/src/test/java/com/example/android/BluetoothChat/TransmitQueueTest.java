@@ -0,0 +1,111 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link TransmitQueue} order: direct copies, high utility and old
+ * messages first, and within the same worth the smaller copy.
+ */
+public class TransmitQueueTest {
+
+    private static final String PEER = "00:00:00:00:00:0A";
+    private static final String OTHER = "00:00:00:00:00:0B";
+    private static final long NOW = 1450000000000L;
+
+    @Test
+    public void directCopyGoesFirst() {
+        TransmitQueue queue = new TransmitQueue(PEER, new MessageStore(), NOW);
+        MessageBT forwarded = message(new Random(1), OTHER, "text", NOW);
+        MessageBT direct = message(new Random(2), PEER, "text", NOW);
+        queue.add(forwarded);
+        queue.add(direct);
+
+        assertSame(direct, queue.peek().getMessage());
+        assertEquals(2, queue.size());
+        assertSame(direct, queue.poll().getMessage());
+        assertSame(forwarded, queue.poll().getMessage());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void utilityAndAgeRaiseTheRank() {
+        MessageStore store = new MessageStore();
+        MessageBT plain = message(new Random(3), OTHER, "text", NOW);
+        MessageBT useful = message(new Random(4), OTHER, "text", NOW);
+        MessageBT old = message(new Random(5), OTHER, "text", NOW - MessageBT.DEFAULT_TTL_MILLIS / 2);
+        store.put(plain);
+        store.put(useful);
+        store.put(old);
+        store.setUtility(useful.getId(), 2);
+
+        TransmitQueue queue = new TransmitQueue(PEER, store, NOW);
+        queue.add(plain);
+        queue.add(old);
+        queue.add(useful);
+        assertSame(useful, queue.poll().getMessage());
+        assertSame(old, queue.poll().getMessage());
+        assertSame(plain, queue.poll().getMessage());
+    }
+
+    @Test
+    public void smallerCopyGoesFirst() {
+        TransmitQueue queue = new TransmitQueue(PEER, new MessageStore(), NOW);
+        MessageBT large = message(new Random(6), OTHER, repeat('x', 2000), NOW);
+        MessageBT small = message(new Random(7), OTHER, "text", NOW);
+        queue.add(large);
+        queue.add(small);
+
+        TransmitQueue.Item first = queue.poll();
+        assertSame(small, first.getMessage());
+        assertTrue(first.getPayload().length < queue.peek().getPayload().length);
+    }
+
+    @Test
+    public void pollsEveryCopyOnceByPriority() {
+        Random random = new Random(17);
+        MessageStore store = new MessageStore();
+        TransmitQueue queue = new TransmitQueue(PEER, store, NOW);
+        HashSet<MessageId> added = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            MessageBT msg = message(random, random.nextInt(5) == 0 ? PEER : OTHER,
+                    repeat('x', random.nextInt(300)), NOW - (long) (random.nextDouble() * MessageBT.DEFAULT_TTL_MILLIS));
+            store.put(msg);
+            store.setUtility(msg.getId(), random.nextDouble());
+            queue.add(msg);
+            added.add(msg.getId());
+        }
+
+        HashSet<MessageId> polled = new HashSet<>();
+        double last = Double.MAX_VALUE;
+        TransmitQueue.Item item;
+        while ((item = queue.poll()) != null) {
+            assertTrue(item.getPriority() <= last);
+            last = item.getPriority();
+            assertTrue(polled.add(item.getMessage().getId()));
+        }
+        assertEquals(added, polled);
+    }
+
+    private static MessageBT message(Random random, String destination, String text, long createdAt) {
+        return new MessageBT(new MessageId(random.nextLong(), random.nextLong()), text,
+                destination, null, 0, MessageBT.DEFAULT_COPIES, createdAt,
+                MessageBT.DEFAULT_TTL_MILLIS);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}